@@ -3,21 +3,25 @@ package stever.tagparser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+
 public class Attribute {
 
     private static final Logger log = LoggerFactory.getLogger(Attribute.class);
 
     private String name;
-    private String value;
+
+    /** Value as found in the start-tag, which is normalised when it is read or written. */
+    private CharSequence value;
 
     public Attribute(String name) {
         this.name = name;
         value = null;
     }
 
-    public Attribute(String name, String value) {
+    public Attribute(String name, CharSequence value) {
         this.name = name;
-        if (value != null && !value.toLowerCase().equals("true")) {
+        if (value != null && !(value.length() == 4 && value.toString().equalsIgnoreCase("true"))) {
             this.value = value;
         }
     }
@@ -27,10 +31,25 @@ public class Attribute {
     }
 
     public String getValue() {
-        return value;
+        return value == null ? null : getText().toString();
+    }
+
+    public CharSequence getText() {
+        return value == null ? null : AttributeEscaper.normalize(value);
+    }
+
+    /**
+     * This method writes the attribute for use in markup, with the value decoded and escaped in a single pass.
+     * @param out Output to append to.
+     * @throws IOException Occurs if failed to write to the output.
+     */
+    void appendTo(Appendable out) throws IOException {
+        out.append(name).append('=').append('"');
+        if (value != null) AttributeEscaper.escape(value, out, AttributeEscaper.MARKUP_ESCAPES);
+        out.append('"');
     }
 
-    public void setValue(String value) {
+    public void setValue(CharSequence value) {
         if (value != null) {
             if (this.value != null) {
                 if (log.isWarnEnabled()) {
@@ -0,0 +1,123 @@
+package stever.tagparser;
+
+import java.io.IOException;
+
+/**
+ * This class normalises attribute values in a single pass. The entity references &amp;amp; &amp;quot;
+ * &amp;lt; and &amp;gt; are decoded, and the characters are escaped again as they are written out,
+ * without any intermediate strings. Values that don't contain any of &amp; " &lt; &gt; are passed on
+ * untouched.
+ */
+final class AttributeEscaper {
+
+    /** Escapes for the normalised value, for the characters &amp; " &lt; &gt; in that order. */
+    static final String[] VALUE_ESCAPES = { "&amp;", "&quot;", "&lt;", "&gt;" };
+
+    /**
+     * Escapes for writing the value in markup, where the entity references of the normalised value
+     * have their '&amp;' escaped, other than &amp;amp; itself.
+     */
+    static final String[] MARKUP_ESCAPES = { "&amp;", "&amp;quot;", "&amp;lt;", "&amp;gt;" };
+
+    private AttributeEscaper() {
+    }
+
+    /**
+     * This method checks if a value has any characters to be decoded or escaped.
+     * @param value Attribute value.
+     * @return True if any of &amp; " &lt; &gt; were found.
+     */
+    static boolean needsEscaping(CharSequence value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (escapeIndex(value.charAt(i)) >= 0) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param c Character to check.
+     * @return Index of the escape for the character, or -1 if it isn't escaped.
+     */
+    private static int escapeIndex(char c) {
+        switch (c) {
+            case '&': return 0;
+            case '"': return 1;
+            case '<': return 2;
+            case '>': return 3;
+            default: return -1;
+        }
+    }
+
+    /**
+     * This method checks for some text at a position in the value.
+     * @param value Attribute value.
+     * @param index Position in the value.
+     * @param text Text to look for.
+     * @return True if the text is found at the position.
+     */
+    private static boolean matches(CharSequence value, int index, String text) {
+        if (index + text.length() > value.length()) return false;
+        for (int i = 0; i < text.length(); i++) {
+            if (value.charAt(index + i) != text.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * This method produces the normalised value, with the entity references written the same way.
+     * @param value Attribute value as found in the start-tag.
+     * @return The same value if nothing needs escaping, otherwise a new string.
+     */
+    static CharSequence normalize(CharSequence value) {
+        if (!needsEscaping(value)) return value;
+        StringBuilder result = new StringBuilder(value.length() + 16);
+        try {
+            escape(value, result, VALUE_ESCAPES);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex); // Not thrown by StringBuilder.
+        }
+        return result.toString();
+    }
+
+    /**
+     * This method writes a value, decoding entity references and escaping the characters again in one scan.
+     * Runs of characters that don't need escaping are appended in one go.
+     * @param value Attribute value as found in the start-tag.
+     * @param out Output to append to.
+     * @param escapes VALUE_ESCAPES or MARKUP_ESCAPES.
+     * @throws IOException Occurs if failed to write to the output.
+     */
+    static void escape(CharSequence value, Appendable out, String[] escapes) throws IOException {
+        int length = value.length();
+        int run = 0;
+        int i = 0;
+        while (i < length) {
+            char c = value.charAt(i);
+            int escape = escapeIndex(c);
+            if (escape < 0) {
+                i++;
+                continue;
+            }
+            CharSpan.append(out, value, run, i);
+            i++;
+            if (c == '&') {
+
+                // A reference with its '&' escaped as well, like &amp;quot; is decoded twice.
+                if (matches(value, i, "amp;")) i += 4;
+                if (matches(value, i, "quot;")) {
+                    escape = 1;
+                    i += 5;
+                } else if (matches(value, i, "lt;")) {
+                    escape = 2;
+                    i += 3;
+                } else if (matches(value, i, "gt;")) {
+                    escape = 3;
+                    i += 3;
+                }
+            }
+            out.append(escapes[escape]);
+            run = i;
+        }
+        CharSpan.append(out, value, run, length);
+    }
+}
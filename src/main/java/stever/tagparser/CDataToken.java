@@ -1,14 +1,20 @@
 package stever.tagparser;
 
+import java.io.IOException;
+
 public class CDataToken extends ParseToken {
 
-    private String data;
+    private CharSequence data;
 
-    public CDataToken(String data) {
+    public CDataToken(CharSequence data) {
         this.data = data;
     }
 
     public String getData() {
+        return data.toString();
+    }
+
+    public CharSequence getText() {
         return data;
     }
 
@@ -18,9 +24,9 @@ public class CDataToken extends ParseToken {
         return result.toString();
     }
 
-    public String render() {
-        StringBuilder result = new StringBuilder();
-        result.append("<![CData[").append(data).append("]]>");
-        return result.toString();
+    public void renderTo(Appendable out) throws IOException {
+        out.append("<![CData[");
+        CharSpan.append(out, data, 0, data.length());
+        out.append("]]>");
     }
 }
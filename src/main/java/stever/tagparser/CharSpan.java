@@ -0,0 +1,115 @@
+package stever.tagparser;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * This class is a view of a range of characters in a character array, which is used to
+ * refer to text in the ParseReader block buffer without copying it.
+ * A string is only created when asked for, and then kept.
+ */
+public class CharSpan implements CharSequence {
+
+    private final char[] chars;
+    private final int start;
+    private final int end;
+    private String string = null;
+
+    /**
+     * Constructor for the CharSpan class.
+     * @param chars Character array.
+     * @param start Index of the first character.
+     * @param end Index after the last character.
+     */
+    public CharSpan(char[] chars, int start, int end) {
+        if (start < 0 || end > chars.length || start > end) {
+            throw new IndexOutOfBoundsException("Invalid span " + start + ".." + end);
+        }
+        this.chars = chars;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * @return Character array that the span is a view of.
+     */
+    char[] array() {
+        return chars;
+    }
+
+    /**
+     * @return Index in the character array of the first character.
+     */
+    int arrayOffset() {
+        return start;
+    }
+
+    public int length() {
+        return end - start;
+    }
+
+    public char charAt(int index) {
+        if (index < 0 || index >= end - start) {
+            throw new IndexOutOfBoundsException("Index " + index + " outside span of " + (end - start));
+        }
+        return chars[start + index];
+    }
+
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > this.end - this.start || start > end) {
+            throw new IndexOutOfBoundsException("Invalid sub-sequence " + start + ".." + end);
+        }
+        return new CharSpan(chars, this.start + start, this.start + end);
+    }
+
+    /**
+     * This method appends the characters to a string builder in one go.
+     * @param builder The string builder to append to.
+     */
+    public void appendTo(StringBuilder builder) {
+        builder.append(chars, start, end - start);
+    }
+
+    public String toString() {
+        if (string == null) string = new String(chars, start, end - start);
+        return string;
+    }
+
+    /**
+     * This method appends text to a string builder, copying the characters of a CharSpan
+     * directly rather than one at a time.
+     * @param builder The string builder to append to.
+     * @param text Text to append.
+     */
+    public static void append(StringBuilder builder, CharSequence text) {
+        if (text instanceof CharSpan) {
+            ((CharSpan) text).appendTo(builder);
+        } else {
+            builder.append(text);
+        }
+    }
+
+    /**
+     * This method appends part of some text to any Appendable, copying the characters of a CharSpan
+     * directly to a StringBuilder or Writer rather than one at a time.
+     * @param out The Appendable to append to.
+     * @param text Text to append from.
+     * @param start Index of the first character to append.
+     * @param end Index after the last character to append.
+     * @throws IOException Occurs if failed to write to the output.
+     */
+    public static void append(Appendable out, CharSequence text, int start, int end) throws IOException {
+        if (text instanceof CharSpan) {
+            CharSpan span = (CharSpan) text;
+            if (out instanceof StringBuilder) {
+                ((StringBuilder) out).append(span.chars, span.start + start, end - start);
+                return;
+            }
+            if (out instanceof Writer) {
+                ((Writer) out).write(span.chars, span.start + start, end - start);
+                return;
+            }
+        }
+        out.append(text, start, end);
+    }
+}
@@ -1,5 +1,7 @@
 package stever.tagparser;
 
+import java.io.IOException;
+
 public class CharacterEntityToken extends ParseToken {
 
     private char character;
@@ -26,9 +28,7 @@ public class CharacterEntityToken extends ParseToken {
         return result.toString();
     }
 
-    public String render() {
-        StringBuilder result = new StringBuilder();
-        result.append("&#").append((int) character).append(";");
-        return result.toString();
+    public void renderTo(Appendable out) throws IOException {
+        out.append("&#").append(Integer.toString(character)).append(';');
     }
 }
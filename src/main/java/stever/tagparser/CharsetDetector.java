@@ -0,0 +1,156 @@
+package stever.tagparser;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.nio.charset.Charset;
+
+/**
+ * This class works out the character set of an HTML byte stream, from a byte order mark or
+ * a meta element near the start of the document, before any of the content is decoded.
+ * Only the bytes read for the prescan are held, so the stream is never read twice.
+ */
+class CharsetDetector {
+
+    private static final Logger log = LoggerFactory.getLogger(CharsetDetector.class);
+
+    /** Number of bytes at the start of the document that are searched for a meta element. */
+    static final int PRESCAN_SIZE = 4096;
+
+    /** The ISO-8859-1 character set maps each byte to the character with the same value. */
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+    /** The UTF-8 character set. */
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private CharsetDetector() {
+        // Static methods only.
+    }
+
+    /**
+     * This method detects the character set of the stream, and returns a reader that decodes
+     * the stream from the start, after any byte order mark.
+     * @param input Byte input stream.
+     * @param defaultCharset Character set used when none is declared.
+     * @return Character input stream.
+     * @throws IOException Occurs if failed to read from input.
+     */
+    static Reader open(InputStream input, Charset defaultCharset) throws IOException {
+
+        // Read the start of the stream for the prescan.
+        byte[] head = new byte[PRESCAN_SIZE];
+        int length = 0;
+        int count;
+        while (length < head.length && (count = input.read(head, length, head.length - length)) > 0) {
+            length += count;
+        }
+
+        // A byte order mark takes precedence over any declaration in the document.
+        Charset charset;
+        int offset = 0;
+        if (length >= 3 && (head[0] & 0xFF) == 0xEF && (head[1] & 0xFF) == 0xBB && (head[2] & 0xFF) == 0xBF) {
+            charset = UTF8;
+            offset = 3;
+        } else if (length >= 2 && (head[0] & 0xFF) == 0xFE && (head[1] & 0xFF) == 0xFF) {
+            charset = Charset.forName("UTF-16BE");
+            offset = 2;
+        } else if (length >= 2 && (head[0] & 0xFF) == 0xFF && (head[1] & 0xFF) == 0xFE) {
+            charset = Charset.forName("UTF-16LE");
+            offset = 2;
+        } else {
+            charset = prescan(head, length);
+            if (charset == null) charset = defaultCharset;
+        }
+        log.debug("Decoding stream as {}", charset);
+
+        // Carry on from the bytes already read, with the decoder for the detected character set.
+        if (charset.equals(UTF8)) {
+            return new Utf8Reader(head, offset, length - offset, input);
+        }
+        InputStream remaining = new SequenceInputStream(new ByteArrayInputStream(head, offset, length - offset), input);
+        return new InputStreamReader(remaining, charset);
+    }
+
+    /**
+     * This method searches the start of the document for a meta element declaring the
+     * character set, using the tag parser to find the elements and their attributes.
+     * @param head Bytes from the start of the document.
+     * @param length Number of bytes available.
+     * @return The declared character set, or null if none is found or the prescan fails.
+     */
+    static Charset prescan(byte[] head, int length) {
+
+        // Markup is ASCII in any character set that can be declared this way.
+        // Errors are left for the real parse to report, as the head may also end part way through a tag.
+        TagParser parser = new TagParser(new ParseReader(new String(head, 0, length, LATIN1)));
+        parser.setLogDiagnostics(false);
+        parser.setMaxDiagnostics(0);
+        try {
+            ParseToken token;
+            while (!((token = parser.getNextToken()) instanceof EOFToken)) {
+                if (!(token instanceof TagToken)) continue;
+                Tag tag = ((TagToken) token).getTag();
+                if (tag == null || tag.isEndTag() || tag.getElement() != HtmlElements.META) continue;
+
+                // Either <meta charset="..."> or <meta http-equiv="Content-Type" content="...; charset=...">
+                String label = tag.getAttributeValue("charset");
+                if (label == null) label = getContentCharset(tag.getAttributeValue("content"));
+                Charset charset = lookup(label);
+                if (charset != null) return charset;
+            }
+        } catch (IOException ex) {
+            log.warn("Charset prescan failed", ex);
+        } catch (MaxErrorsException ex) {
+            log.warn("Charset prescan abandoned due to errors");
+        } catch (RuntimeException ex) {
+
+            // The prescan is only a best guess, so content the parser can't handle falls back to the default.
+            log.warn("Charset prescan failed: {}", ex.toString());
+        }
+        return null;
+    }
+
+    /**
+     * This method extracts the character set from a content type.
+     * @param content Content attribute value, such as "text/html; charset=utf-8".
+     * @return Character set label, or null if there isn't one.
+     */
+    static String getContentCharset(String content) {
+        if (content == null) return null;
+        int i = content.toLowerCase().indexOf("charset");
+        if (i < 0) return null;
+        i += "charset".length();
+        while (i < content.length() && content.charAt(i) == ' ') i++;
+        if (i == content.length() || content.charAt(i) != '=') return null;
+        i++;
+        while (i < content.length() && content.charAt(i) == ' ') i++;
+        int start = i;
+        while (i < content.length() && ";'\" \t".indexOf(content.charAt(i)) < 0) i++;
+        return i > start ? content.substring(start, i) : null;
+    }
+
+    /**
+     * This method looks up a character set by its label.
+     * @param label Character set label.
+     * @return Character set, or null if the label isn't supported.
+     */
+    private static Charset lookup(String label) {
+        if (label == null) return null;
+        try {
+            Charset charset = Charset.forName(label.trim());
+
+            // The prescan only finds a declaration in an ASCII-compatible encoding.
+            if (charset.name().startsWith("UTF-16")) return UTF8;
+            return charset;
+        } catch (IllegalArgumentException ex) {
+            log.warn("Unsupported charset declared: {}", label);
+            return null;
+        }
+    }
+}
@@ -1,14 +1,20 @@
 package stever.tagparser;
 
+import java.io.IOException;
+
 public class CommentToken extends ParseToken {
 
-    private String comment;
+    private CharSequence comment;
 
-    public CommentToken(String comment) {
+    public CommentToken(CharSequence comment) {
         this.comment = comment;
     }
 
     public String getComment() {
+        return comment.toString();
+    }
+
+    public CharSequence getText() {
         return comment;
     }
 
@@ -18,9 +24,9 @@ public class CommentToken extends ParseToken {
         return result.toString();
     }
 
-    public String render() {
-        StringBuilder result = new StringBuilder();
-        result.append("<!--").append(comment).append("-->");
-        return result.toString();
+    public void renderTo(Appendable out) throws IOException {
+        out.append("<!--");
+        CharSpan.append(out, comment, 0, comment.length());
+        out.append("-->");
     }
 }
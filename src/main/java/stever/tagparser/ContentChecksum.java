@@ -0,0 +1,26 @@
+package stever.tagparser;
+
+/**
+ * This class is the base for checksums of the content read by the ParseReader class.
+ * The checksum is updated with each block of characters as it is read from the input stream,
+ * before linefeeds are removed, so it covers exactly the characters of the source document.
+ */
+public abstract class ContentChecksum {
+
+    /**
+     * This method updates the checksum with a block of characters.
+     * @param chars Character buffer.
+     * @param offset Offset of the first character.
+     * @param length Number of characters.
+     */
+    public abstract void update(char[] chars, int offset, int length);
+
+    /**
+     * Gets the checksum for the characters so far.
+     * @return Checksum value.
+     */
+    public abstract long getValue();
+
+    /** This method resets the checksum to its initial value. */
+    public abstract void reset();
+}
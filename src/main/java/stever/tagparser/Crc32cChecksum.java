@@ -0,0 +1,61 @@
+package stever.tagparser;
+
+/**
+ * This is the CRC-32C (Castagnoli) checksum of the content, encoded as UTF-16LE.
+ * It uses the slicing-by-4 table method, so each pair of characters takes four table lookups.
+ */
+public class Crc32cChecksum extends ContentChecksum {
+
+    /** The reversed Castagnoli polynomial. */
+    private static final int POLYNOMIAL = 0x82F63B78;
+
+    /** Lookup tables for the CRC of a byte followed by zero, one, two or three zero bytes. */
+    private static final int[][] TABLES = new int[4][256];
+    static {
+        for (int n = 0; n < 256; n++) {
+            int crc = n;
+            for (int k = 0; k < 8; k++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLES[0][n] = crc;
+        }
+        for (int n = 0; n < 256; n++) {
+            for (int t = 1; t < 4; t++) {
+                int crc = TABLES[t - 1][n];
+                TABLES[t][n] = TABLES[0][crc & 0xFF] ^ (crc >>> 8);
+            }
+        }
+    }
+
+    private int crc = 0xFFFFFFFF;
+
+    public void update(char[] chars, int offset, int length) {
+        final int[] t0 = TABLES[0];
+        final int[] t1 = TABLES[1];
+        final int[] t2 = TABLES[2];
+        final int[] t3 = TABLES[3];
+        int c = crc;
+        int i = offset;
+        int end = offset + length;
+
+        // Two characters are four bytes, little-endian.
+        for (int pairs = end - 1; i < pairs; i += 2) {
+            c ^= chars[i] | (chars[i + 1] << 16);
+            c = t3[c & 0xFF] ^ t2[(c >>> 8) & 0xFF] ^ t1[(c >>> 16) & 0xFF] ^ t0[c >>> 24];
+        }
+        if (i < end) {
+            char last = chars[i];
+            c = t0[(c ^ last) & 0xFF] ^ (c >>> 8);
+            c = t0[(c ^ (last >>> 8)) & 0xFF] ^ (c >>> 8);
+        }
+        crc = c;
+    }
+
+    public long getValue() {
+        return ~crc & 0xFFFFFFFFL;
+    }
+
+    public void reset() {
+        crc = 0xFFFFFFFF;
+    }
+}
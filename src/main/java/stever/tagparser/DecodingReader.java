@@ -0,0 +1,98 @@
+package stever.tagparser;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+
+/**
+ * This class decodes characters from a byte buffer as they are read, so the decoded
+ * content never needs to be held in memory all at once.
+ */
+class DecodingReader extends Reader {
+
+    /** Bytes remaining to be decoded. */
+    private ByteBuffer input;
+
+    /** Decoder for the character set of the input bytes. */
+    private CharsetDecoder decoder;
+
+    /** Set when all the input bytes have been decoded. */
+    private boolean decoded = false;
+
+    /** Set when the decoder has been flushed, after all input has been decoded. */
+    private boolean flushed = false;
+
+    /** Room for a supplementary character, when there's less room than that in the destination buffer. */
+    private final CharBuffer scratch = CharBuffer.allocate(2);
+
+    /** Low surrogate of a supplementary character that didn't fit in the last read, or -1. */
+    private int pendingLowSurrogate = -1;
+
+    /**
+     * Constructor for the DecodingReader class.
+     * @param input Bytes to be decoded.
+     * @param decoder Decoder for the character set of the input bytes.
+     */
+    DecodingReader(ByteBuffer input, CharsetDecoder decoder) {
+        this.input = input;
+        this.decoder = decoder;
+    }
+
+    /**
+     * Decodes characters into a portion of an array.
+     * @param cbuf Destination buffer.
+     * @param off Offset at which to start storing characters.
+     * @param len Maximum number of characters to read.
+     * @return The number of characters read, or -1 if the end of input has been reached.
+     * @throws IOException Thrown if the input is malformed and the decoder doesn't replace it.
+     */
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (pendingLowSurrogate >= 0) {
+            cbuf[off] = (char) pendingLowSurrogate;
+            pendingLowSurrogate = -1;
+            return 1;
+        }
+        if (len > 1) return decode(CharBuffer.wrap(cbuf, off, len));
+
+        // The decoder won't split a supplementary character, so it's decoded here and split across reads.
+        scratch.clear();
+        int count = decode(scratch);
+        if (count <= 0) return count;
+        cbuf[off] = scratch.get(0);
+        if (count == 2) pendingLowSurrogate = scratch.get(1);
+        return 1;
+    }
+
+    /**
+     * Decodes characters into a character buffer, flushing the decoder at the end of the input.
+     * @param output Destination buffer, with room for at least two characters.
+     * @return The number of characters decoded, or -1 if the end of input has been reached.
+     * @throws IOException Thrown if the input is malformed and the decoder doesn't replace it.
+     */
+    private int decode(CharBuffer output) throws IOException {
+        int start = output.position();
+        if (!decoded) {
+            CoderResult result = decoder.decode(input, output, true);
+            if (result.isUnderflow()) {
+                decoded = true;
+            } else if (result.isError()) {
+                result.throwException();
+            }
+        }
+        if (decoded && !flushed) {
+            flushed = decoder.flush(output).isUnderflow();
+        }
+        int count = output.position() - start;
+        return (count == 0 && flushed) ? -1 : count;
+    }
+
+    @Override
+    public void close() {
+        input = null;
+    }
+}
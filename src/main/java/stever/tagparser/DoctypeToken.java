@@ -1,5 +1,7 @@
 package stever.tagparser;
 
+import java.io.IOException;
+
 public class DoctypeToken extends ParseToken {
 
     private String name;
@@ -24,9 +26,7 @@ public class DoctypeToken extends ParseToken {
         return result.toString();
     }
 
-    public String render() {
-        StringBuilder result = new StringBuilder();
-        result.append("<!").append(name).append(' ').append(data).append(">");
-        return result.toString();
+    public void renderTo(Appendable out) throws IOException {
+        out.append("<!").append(name).append(' ').append(data).append('>');
     }
 }
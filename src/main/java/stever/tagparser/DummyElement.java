@@ -1,5 +1,7 @@
 package stever.tagparser;
 
+import java.io.IOException;
+
 public class DummyElement extends Tag {
 
     // Example: <BR><!-- inserted missing start-tag --></BR>
@@ -8,20 +10,15 @@ public class DummyElement extends Tag {
 
     /**
      * Constructor for the DummyElement class.
-     * @param endTag This must be an end-tag (tag name beginning '/').
+     * @param endTag This must be an end-tag.
      */
     public DummyElement(Tag endTag) {
-        super(endTag.getName().substring(1), endTag.isCaseSensitive());
+        super(endTag, false);
 
         // Ensure provided tag is an end-tag.        
         if (!endTag.isEndTag()) {
             throw new IllegalArgumentException("End-tag must be provided to DummyElement class constructor!");
         }
-
-        // Copy attributes.
-        for (Attribute attrib : endTag.getAttributes()) {
-            attributes.put(attrib.getName(), attrib);
-        }
     }
 
     public String getComment() {
@@ -39,4 +36,13 @@ public class DummyElement extends Tag {
     public String toString() {
         return super.toString(true, comment);
     }
+
+    /**
+     * This method writes this element straight to the output.
+     * @param out Output to append to.
+     * @throws IOException Occurs if failed to write to the output.
+     */
+    public void renderTo(Appendable out) throws IOException {
+        super.renderTo(out, true, comment);
+    }
 }
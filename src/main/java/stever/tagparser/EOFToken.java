@@ -1,7 +1,12 @@
 package stever.tagparser;
 
+import java.io.IOException;
+
 public class EOFToken extends ParseToken {
 
+    /** Shared instance, as EOF tokens have no state. */
+    public static final EOFToken INSTANCE = new EOFToken();
+
     public String toString() {
         return "EOF";
     }
@@ -10,4 +15,8 @@ public class EOFToken extends ParseToken {
         char[] str = { (char) -1 };
         return str.toString();
     }
+
+    public void renderTo(Appendable out) throws IOException {
+        // End of file has no source text.
+    }
 }
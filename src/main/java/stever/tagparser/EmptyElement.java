@@ -1,21 +1,18 @@
 package stever.tagparser;
 
+import java.io.IOException;
+
 public class EmptyElement extends Tag {
 
     // Example: <BR/>
 
     public EmptyElement(Tag tag) {
-        super(tag.getName(), tag.isCaseSensitive());
+        super(tag, false);
 
         // Ensure provided tag is not an end-tag.
-        if (super.isEndTag()) {
+        if (tag.isEndTag()) {
             throw new IllegalArgumentException("End-tag cannot be provided to EmptyElement class constructor!");
         }
-
-        // Copy attributes.
-        for (Attribute attrib : tag.getAttributes()) {
-            attributes.put(attrib.getName(), attrib);
-        }
     }
 
     /**
@@ -25,4 +22,13 @@ public class EmptyElement extends Tag {
     public String toString() {
         return super.toString(true, null);
     }
+
+    /**
+     * This method writes this element straight to the output.
+     * @param out Output to append to.
+     * @throws IOException Occurs if failed to write to the output.
+     */
+    public void renderTo(Appendable out) throws IOException {
+        super.renderTo(out, true, null);
+    }
 }
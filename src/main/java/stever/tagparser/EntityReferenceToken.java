@@ -1,5 +1,7 @@
 package stever.tagparser;
 
+import java.io.IOException;
+
 public class EntityReferenceToken extends ParseToken {
 
     private String name;
@@ -18,9 +20,7 @@ public class EntityReferenceToken extends ParseToken {
         return result.toString();
     }
 
-    public String render() {
-        StringBuilder result = new StringBuilder();
-        result.append("&").append(name).append(";");
-        return result.toString();
+    public void renderTo(Appendable out) throws IOException {
+        out.append('&').append(name).append(';');
     }
 }
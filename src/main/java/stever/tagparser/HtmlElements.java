@@ -0,0 +1,203 @@
+package stever.tagparser;
+
+/**
+ * This class is a registry of the known HTML element names. Each name has one canonical lowercase
+ * String instance and an int id. The low bits of the id number the element and the high bits hold
+ * its categories, so that checking a category is a bit test on the id rather than a list search.
+ * Names are looked up with ASCII case folding straight from the tokenizer buffer, without a String
+ * being created for known elements.
+ */
+public final class HtmlElements {
+
+    /** Id of any tag name that isn't a known element. */
+    public static final int UNKNOWN = 0;
+
+    /** Category of elements that are always empty elements. End-tag is redundant for these. */
+    public static final int VOID = 1 << 8;
+
+    /** Category of elements that appear only once in an HTML document. */
+    public static final int SINGLE = 1 << 9;
+
+    /** Category of elements with content that isn't parsed as markup. */
+    public static final int RAW_TEXT = 1 << 10;
+
+    /** Bits of the id that number the element. */
+    private static final int INDEX_MASK = 0xff;
+
+    /** Canonical names of the elements. */
+    private static final NameTable names = new NameTable(INDEX_MASK);
+
+    /** Id of each element, by index in the name table. */
+    private static final int[] ids = new int[INDEX_MASK + 1];
+
+    // Document structure.
+    public static final int HTML = element("html", SINGLE);
+    public static final int HEAD = element("head", SINGLE);
+    public static final int BODY = element("body", SINGLE);
+    public static final int TITLE = element("title", 0);
+    public static final int BASE = element("base", VOID);
+    public static final int LINK = element("link", VOID);
+    public static final int META = element("meta", VOID);
+    public static final int STYLE = element("style", RAW_TEXT);
+    public static final int SCRIPT = element("script", RAW_TEXT);
+    public static final int NOSCRIPT = element("noscript", 0);
+
+    // Sections and grouping.
+    public static final int ADDRESS = element("address", 0);
+    public static final int ARTICLE = element("article", 0);
+    public static final int ASIDE = element("aside", 0);
+    public static final int BLOCKQUOTE = element("blockquote", 0);
+    public static final int CENTER = element("center", 0);
+    public static final int DD = element("dd", 0);
+    public static final int DIV = element("div", 0);
+    public static final int DL = element("dl", 0);
+    public static final int DT = element("dt", 0);
+    public static final int FIGCAPTION = element("figcaption", 0);
+    public static final int FIGURE = element("figure", 0);
+    public static final int FOOTER = element("footer", 0);
+    public static final int H1 = element("h1", 0);
+    public static final int H2 = element("h2", 0);
+    public static final int H3 = element("h3", 0);
+    public static final int H4 = element("h4", 0);
+    public static final int H5 = element("h5", 0);
+    public static final int H6 = element("h6", 0);
+    public static final int HEADER = element("header", 0);
+    public static final int HR = element("hr", 0);
+    public static final int LI = element("li", 0);
+    public static final int MAIN = element("main", 0);
+    public static final int NAV = element("nav", 0);
+    public static final int OL = element("ol", 0);
+    public static final int P = element("p", 0);
+    public static final int PRE = element("pre", 0);
+    public static final int SECTION = element("section", 0);
+    public static final int UL = element("ul", 0);
+
+    // Text-level.
+    public static final int A = element("a", 0);
+    public static final int ABBR = element("abbr", 0);
+    public static final int B = element("b", 0);
+    public static final int BIG = element("big", 0);
+    public static final int BR = element("br", VOID);
+    public static final int CITE = element("cite", 0);
+    public static final int CODE = element("code", 0);
+    public static final int DEL = element("del", 0);
+    public static final int DFN = element("dfn", 0);
+    public static final int EM = element("em", 0);
+    public static final int FONT = element("font", 0);
+    public static final int I = element("i", 0);
+    public static final int INS = element("ins", 0);
+    public static final int KBD = element("kbd", 0);
+    public static final int MARK = element("mark", 0);
+    public static final int Q = element("q", 0);
+    public static final int S = element("s", 0);
+    public static final int SAMP = element("samp", 0);
+    public static final int SMALL = element("small", 0);
+    public static final int SPAN = element("span", 0);
+    public static final int STRIKE = element("strike", 0);
+    public static final int STRONG = element("strong", 0);
+    public static final int SUB = element("sub", 0);
+    public static final int SUP = element("sup", 0);
+    public static final int TIME = element("time", 0);
+    public static final int TT = element("tt", 0);
+    public static final int U = element("u", 0);
+    public static final int VAR = element("var", 0);
+
+    // Embedded content.
+    public static final int AREA = element("area", VOID);
+    public static final int AUDIO = element("audio", 0);
+    public static final int CANVAS = element("canvas", 0);
+    public static final int EMBED = element("embed", 0);
+    public static final int IFRAME = element("iframe", 0);
+    public static final int IMG = element("img", VOID);
+    public static final int MAP = element("map", 0);
+    public static final int OBJECT = element("object", 0);
+    public static final int PARAM = element("param", 0);
+    public static final int SOURCE = element("source", 0);
+    public static final int VIDEO = element("video", 0);
+
+    // Tables.
+    public static final int CAPTION = element("caption", 0);
+    public static final int COL = element("col", 0);
+    public static final int COLGROUP = element("colgroup", 0);
+    public static final int TABLE = element("table", 0);
+    public static final int TBODY = element("tbody", 0);
+    public static final int TD = element("td", 0);
+    public static final int TFOOT = element("tfoot", 0);
+    public static final int TH = element("th", 0);
+    public static final int THEAD = element("thead", 0);
+    public static final int TR = element("tr", 0);
+
+    // Forms.
+    public static final int BUTTON = element("button", 0);
+    public static final int FIELDSET = element("fieldset", 0);
+    public static final int FORM = element("form", 0);
+    public static final int INPUT = element("input", VOID);
+    public static final int LABEL = element("label", 0);
+    public static final int LEGEND = element("legend", 0);
+    public static final int OPTGROUP = element("optgroup", 0);
+    public static final int OPTION = element("option", 0);
+    public static final int SELECT = element("select", 0);
+    public static final int TEXTAREA = element("textarea", 0);
+
+    // Frames.
+    public static final int FRAME = element("frame", 0);
+    public static final int FRAMESET = element("frameset", 0);
+    public static final int NOFRAMES = element("noframes", 0);
+
+    private HtmlElements() {
+    }
+
+    /**
+     * Registers an element name, giving it the next index.
+     * @param name Canonical lowercase name.
+     * @param categories Category bits for the element.
+     * @return Id of the element.
+     */
+    private static int element(String name, int categories) {
+        int index = names.add(name);
+        ids[index] = index | categories;
+        return ids[index];
+    }
+
+    /**
+     * Looks up an element name, ignoring the case of ASCII letters.
+     * @param name Characters of the name, such as the tokenizer buffer.
+     * @param start Index of the first character of the name, to skip the '/' of an end-tag.
+     * @return Id of the element, or UNKNOWN.
+     */
+    public static int lookup(CharSequence name, int start) {
+        return ids[names.lookup(name, start)];
+    }
+
+    /**
+     * @param id Id of an element.
+     * @return Canonical lowercase name of the element, or null for UNKNOWN.
+     */
+    public static String getName(int id) {
+        return names.getName(id & INDEX_MASK);
+    }
+
+    /**
+     * @param id Id of an element.
+     * @return True if the element is always an empty element.
+     */
+    public static boolean isVoid(int id) {
+        return (id & VOID) != 0;
+    }
+
+    /**
+     * @param id Id of an element.
+     * @return True if the element appears only once in an HTML document.
+     */
+    public static boolean isSingle(int id) {
+        return (id & SINGLE) != 0;
+    }
+
+    /**
+     * @param id Id of an element.
+     * @return True if the element content isn't parsed as markup.
+     */
+    public static boolean isRawText(int id) {
+        return (id & RAW_TEXT) != 0;
+    }
+}
@@ -0,0 +1,6 @@
+package stever.tagparser;
+
+import java.io.IOException;
+
+/** This exception is generated when content is fed in chunks and more is needed to continue parsing. */
+public class InputUnderflowException extends IOException {}
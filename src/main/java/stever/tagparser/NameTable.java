@@ -0,0 +1,131 @@
+package stever.tagparser;
+
+/**
+ * This class holds a fixed set of canonical lowercase names in an open-addressed hash table.
+ * Names are looked up with ASCII case folding from any character sequence, such as the parser
+ * buffer, so that no String is created for a name that is already known.
+ */
+final class NameTable {
+
+    /** Canonical name of each entry, by index. Index 0 is never used. */
+    private final String[] names;
+
+    /** Indexes of the entries, by hash of the name. Empty slots are 0. */
+    private final int[] table;
+
+    /** Number of names added. */
+    private int count = 0;
+
+    /**
+     * Constructor for the NameTable class.
+     * @param capacity Largest number of names.
+     */
+    NameTable(int capacity) {
+        names = new String[capacity + 1];
+        int size = Integer.highestOneBit(capacity) << 2;
+        table = new int[size];
+    }
+
+    /**
+     * Adds a name, giving it the next index.
+     * @param name Canonical lowercase name.
+     * @return Index of the name, starting from 1.
+     */
+    int add(String name) {
+        int index = ++count;
+        names[index] = name;
+        int slot = hash(name, 0);
+        while (table[slot] != 0) slot = (slot + 1) & (table.length - 1);
+        table[slot] = index;
+        return index;
+    }
+
+    /**
+     * Folds an ASCII upper-case letter to lower-case, leaving any other character as it is.
+     * @param c Character to fold.
+     * @return Lower-case character.
+     */
+    private static char fold(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    /**
+     * Hashes a name the same way whatever the case of its ASCII letters.
+     * @param name Characters of the name.
+     * @param start Index of the first character of the name.
+     * @return Slot in the lookup table.
+     */
+    private int hash(CharSequence name, int start) {
+        int h = 0;
+        for (int i = start; i < name.length(); i++) h = 31 * h + fold(name.charAt(i));
+        return (h ^ (h >>> 9)) & (table.length - 1);
+    }
+
+    /**
+     * Looks up a name, ignoring the case of ASCII letters.
+     * @param name Characters of the name.
+     * @param start Index of the first character of the name.
+     * @return Index of the name, or 0 if it isn't known.
+     */
+    int lookup(CharSequence name, int start) {
+        int length = name.length() - start;
+        for (int slot = hash(name, start); ; slot = (slot + 1) & (table.length - 1)) {
+            int index = table[slot];
+            if (index == 0) return 0;
+            String known = names[index];
+            if (known.length() != length) continue;
+            int i = 0;
+            while (i < length && fold(name.charAt(start + i)) == known.charAt(i)) i++;
+            if (i == length) return index;
+        }
+    }
+
+    /**
+     * @param index Index of a name.
+     * @return Canonical name, or null for index 0.
+     */
+    String getName(int index) {
+        return names[index];
+    }
+
+    /**
+     * Produces the canonical instance of a name, or a new String for one that isn't known.
+     * @param name Characters of the name.
+     * @param start Index of the first character of the name.
+     * @param caseSensitive True if the case of the name is to be kept.
+     * @return Name, lower-cased unless case-sensitive.
+     */
+    String intern(CharSequence name, int start, boolean caseSensitive) {
+        int index = lookup(name, start);
+        if (caseSensitive) {
+            String result = name.subSequence(start, name.length()).toString();
+            return result.equals(names[index]) ? names[index] : result;
+        } else if (index != 0) {
+            return names[index];
+        } else {
+            // Some letters outside ASCII lower-case to ASCII, so the folded name is looked up again.
+            String result = toLowerCase(name, start);
+            index = lookup(result, 0);
+            return index != 0 ? names[index] : result;
+        }
+    }
+
+    /**
+     * Produces the lower-case form of a name.
+     * ASCII letters are folded directly, and other letters by String.toLowerCase().
+     * @param name Characters of the name.
+     * @param start Index of the first character of the name.
+     * @return Lower-case name.
+     */
+    static String toLowerCase(CharSequence name, int start) {
+        char[] chars = new char[name.length() - start];
+        boolean ascii = true;
+        for (int i = 0; i < chars.length; i++) {
+            char c = name.charAt(start + i);
+            if (c >= 0x80) ascii = false;
+            chars[i] = fold(c);
+        }
+        String result = new String(chars);
+        return ascii ? result : result.toLowerCase();
+    }
+}
@@ -1,7 +1,12 @@
 package stever.tagparser;
 
+import java.io.IOException;
+
 public class NewlineToken extends ParseToken {
 
+    /** Shared instance, as newline tokens have no state. */
+    public static final NewlineToken INSTANCE = new NewlineToken();
+
     public String toString() {
         return "Newline";
     }
@@ -9,4 +14,8 @@ public class NewlineToken extends ParseToken {
     public String render() {
         return "\n";
     }
+
+    public void renderTo(Appendable out) throws IOException {
+        out.append('\n');
+    }
 }
@@ -1,8 +1,10 @@
 package stever.tagparser;
 
+import java.io.IOException;
+
 public class NumberToken extends ParseToken {
 
-    private long number;
+    private final long number;
 
     public NumberToken(long number) {
         this.number = number;
@@ -19,6 +21,10 @@ public class NumberToken extends ParseToken {
     }
 
     public String render() {
-        return new Long(number).toString();
+        return Long.toString(number);
+    }
+
+    public void renderTo(Appendable out) throws IOException {
+        out.append(Long.toString(number));
     }
 }
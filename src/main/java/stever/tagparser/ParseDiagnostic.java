@@ -0,0 +1,187 @@
+package stever.tagparser;
+
+/**
+ * This class records an error, recovery or warning found by a parser, with the parser state,
+ * the character and the position where it was found. The message text is only produced when asked for.
+ */
+public class ParseDiagnostic {
+
+    /** How serious a diagnostic is, which decides the parser counter it adds to. */
+    public enum Severity {
+        ERROR, RECOVERY, WARNING
+    }
+
+    /** The kinds of diagnostic reported by the parsers. */
+    public enum Kind {
+
+        /** Character cannot be accepted in the state. */
+        INVALID_CHAR(Severity.ERROR),
+
+        /** No transition from the state for the character. */
+        UNKNOWN_EDGE(Severity.ERROR),
+
+        /** Character accepted by default in the state. */
+        DEFAULT_ACCEPT(Severity.WARNING),
+
+        /** Marked section that isn't a CDATA section. */
+        CDATA_EXPECTED(Severity.ERROR),
+
+        /** Declaration that isn't a DTD part. */
+        UNRECOGNISED_DTD(Severity.ERROR),
+
+        /** The '&amp;' character in text, without an entity reference. */
+        AMPERSAND_NOT_ENTITY(Severity.RECOVERY),
+
+        /** Known entity reference without the ';' at the end. */
+        ENTITY_NOT_ENDED(Severity.RECOVERY),
+
+        /** Text after '&amp;' that isn't a known entity reference. */
+        TEXT_NOT_ENTITY(Severity.RECOVERY),
+
+        /** Character entity without the ';' at the end. */
+        CHARACTER_ENTITY_NOT_ENDED(Severity.RECOVERY),
+
+        /** End of file part way through markup. */
+        UNEXPECTED_EOF(Severity.WARNING);
+
+        private final Severity severity;
+
+        Kind(Severity severity) {
+            this.severity = severity;
+        }
+
+        /** @return How serious this kind of diagnostic is. */
+        public Severity getSeverity() {
+            return severity;
+        }
+    }
+
+    private final Kind kind;
+    private final Enum state;
+    private final char character;
+    private final int offset;
+    private final int line;
+    private final int column;
+    private final String detail;
+
+    /**
+     * Constructor for the ParseDiagnostic class.
+     * @param kind Kind of diagnostic.
+     * @param state Parser state.
+     * @param character Character being parsed.
+     * @param offset Character count when it was found.
+     * @param line Line number, or 0 if position tracking is disabled.
+     * @param column Column position, or 0 if position tracking is disabled.
+     * @param detail Optional text, such as the name that wasn't recognised.
+     */
+    public ParseDiagnostic(Kind kind, Enum state, char character, int offset, int line, int column, String detail) {
+        this.kind = kind;
+        this.state = state;
+        this.character = character;
+        this.offset = offset;
+        this.line = line;
+        this.column = column;
+        this.detail = detail;
+    }
+
+    /** @return Kind of diagnostic. */
+    public Kind getKind() {
+        return kind;
+    }
+
+    /** @return How serious the diagnostic is. */
+    public Severity getSeverity() {
+        return kind.getSeverity();
+    }
+
+    /** @return Parser state when it was found. */
+    public Enum getState() {
+        return state;
+    }
+
+    /** @return Character being parsed when it was found. */
+    public char getCharacter() {
+        return character;
+    }
+
+    /** @return Character count when it was found. */
+    public int getOffset() {
+        return offset;
+    }
+
+    /** @return Line number, or 0 if position tracking is disabled. */
+    public int getLineNumber() {
+        return line;
+    }
+
+    /** @return Column position, or 0 if position tracking is disabled. */
+    public int getColumnNumber() {
+        return column;
+    }
+
+    /** @return Optional text, such as the name that wasn't recognised, or null. */
+    public String getDetail() {
+        return detail;
+    }
+
+    /**
+     * Produces the line number and column number, or the character offset when position tracking is disabled.
+     * @return Character position.
+     */
+    public String getCharacterPosition() {
+        if (line == 0) {
+            return (new StringBuilder()).append('@').append(offset).toString();
+        }
+        return (new StringBuilder()).append(line).append(':').append(column).toString();
+    }
+
+    /**
+     * Produces the message text, including the position.
+     * @return The message.
+     */
+    public String getMessage() {
+        StringBuilder result = new StringBuilder();
+        switch (kind) {
+            case INVALID_CHAR:
+                result.append("Character ").append(Parser.toNameString(character))
+                        .append(" cannot be accepted from the ").append(state).append(" state");
+                break;
+            case UNKNOWN_EDGE:
+                result.append("No edge labelled ").append(Parser.toNameString(character))
+                        .append(" from the ").append(state).append(" state");
+                break;
+            case DEFAULT_ACCEPT:
+                result.append("Character ").append(Parser.toNameString(character))
+                        .append(" defaulted from the ").append(state).append(" state");
+                break;
+            case CDATA_EXPECTED:
+                result.append("CData declaration expected");
+                break;
+            case UNRECOGNISED_DTD:
+                result.append("Unrecognised DTD part \"").append(detail).append('"');
+                break;
+            case AMPERSAND_NOT_ENTITY:
+                result.append("Recovery assumed that '&' is not intended as an entity reference");
+                break;
+            case ENTITY_NOT_ENDED:
+                result.append("Recovery assumed that ; should have ended this entity reference");
+                break;
+            case TEXT_NOT_ENTITY:
+                result.append("Recovery assumed that text was not intended as an entity reference");
+                break;
+            case CHARACTER_ENTITY_NOT_ENDED:
+                result.append("Recovery assumed that ; should have ended this character entity");
+                if (detail != null) result.append(": ").append(detail);
+                break;
+            case UNEXPECTED_EOF:
+                result.append("Unexpected EOF");
+                break;
+        }
+        result.append(" (").append(getCharacterPosition()).append(')');
+        return result.toString();
+    }
+
+    public String toString() {
+        return getMessage();
+    }
+}
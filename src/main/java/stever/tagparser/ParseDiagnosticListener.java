@@ -0,0 +1,11 @@
+package stever.tagparser;
+
+/** This interface is implemented to be sent each diagnostic as it is reported by a parser. */
+public interface ParseDiagnosticListener {
+
+    /**
+     * This method is called for each error, recovery or warning reported.
+     * @param diagnostic The diagnostic reported.
+     */
+    void reportDiagnostic(ParseDiagnostic diagnostic);
+}
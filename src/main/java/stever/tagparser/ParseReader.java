@@ -2,14 +2,24 @@ package stever.tagparser;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Reader;
-import java.io.StringReader;
-import java.util.Stack;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 
 /**
  * This class provides the character input stream to the Parser class.
- * It supports a pushback queue to assist the Parser class deal with unexpected input.
+ * It supports a pushback buffer to assist the Parser class deal with unexpected input.
+ * Characters are read from the underlying stream a block at a time into a reusable buffer,
+ * and linefeed stripping and checksum updates are applied to each block as it is filled.
  */
 public class ParseReader {
 
@@ -18,34 +28,93 @@ public class ParseReader {
     /** The value from the character stream which represents the end-of-file. */
     public static final char EOF = (char) -1;
 
+    /** Default size of the block buffer used when reading from a character stream. */
+    public static final int DEFAULT_BLOCK_SIZE = 8192;
+
+    /** Initial capacity of the pushback buffer, which grows as required. */
+    private static final int INITIAL_PUSHBACK_SIZE = 16;
+
     /** Optional filename or URL to identify the stream. */
     private String filename = null;
 
-    /** Input stream reader. */
+    /** Input stream reader, or null when the whole content is held in the block buffer. */
     private Reader stream = null;
 
-    /** Pushback queue is used to push characters back onto input stream to be re-parsed. */
-    private Stack<Character> pushbackQueue = null;
+    /**
+     * Pushback buffer is used to push characters back onto input stream to be re-parsed.
+     * The last character in the buffer is the next character to be read.
+     */
+    private char[] pushbackBuffer = new char[INITIAL_PUSHBACK_SIZE];
+
+    /** Number of characters in the pushback buffer. */
+    private int pushbackCount = 0;
+
+    /** Block buffer holding characters read from the input stream. */
+    private char[] buffer;
+
+    /** Length of the content string held in the block buffer, when there's no input stream. */
+    private int textLength = 0;
+
+    /** Position of the next character to be read from the block buffer. */
+    private int position = 0;
+
+    /** Number of valid characters in the block buffer. */
+    private int limit = 0;
+
+    /** Set when the input stream has no more characters. */
+    private boolean endOfStream = false;
+
+    /** Set when the content is fed in chunks, rather than read from an input stream. */
+    private boolean feeding = false;
+
+    /** Decoder for UTF-8 content fed as bytes, created when first needed. */
+    private CharsetDecoder decoder = null;
+
+    /** Bytes at the end of the last chunk fed that don't make up a whole character yet. */
+    private ByteBuffer partialBytes = null;
+
+    /** Optional checksum on the raw data from the input stream. */
+    private ContentChecksum checksum = new XorChecksum();
 
-    /** Checksum on the raw data from the input stream. */
-    private char checksum = (char) 0;
+    /** Offset in the stream of the first character in the block buffer. */
+    private int blockStart = 0;
 
-    /** The character count is simply used for keeping a note of the size of the document. */
-    private int charCount = 0;
+    /** Offset of the first character that must be kept in the block buffer when it's refilled. */
+    private int mark = -1;
 
-    /** The column number is used in reporting errors. */
-    private int columnNumber = 0;
+    /** Offset of the last character read, or -1 if it wasn't read from the block buffer. */
+    private int lastReadOffset = -1;
 
-    /** The line number is used in reporting errors. */
-    private int lineNumber = 1;
+    /** Option to record where lines start, so that line and column numbers can be reported. */
+    private boolean positionTracking = true;
+
+    /** Offsets of the start of each line after the first, in the order read. */
+    private int[] lineStarts = new int[64];
+
+    /** Number of line start offsets recorded. */
+    private int lineStartCount = 0;
+
+    /** Byte offsets in the UTF-8 source of the characters, when tracked for copying text to UTF-8 output. */
+    private Utf8Offsets sourceOffsets = null;
 
     /**
      * Constructor using a content string.
+     * The whole string is held as a single block, so no further reads are required.
      * @param text Content string.
      */
     public ParseReader(String text) {
-        stream = new StringReader(text);
-        pushbackQueue = new Stack<Character>();
+        buffer = text.toCharArray();
+        textLength = buffer.length;
+    }
+
+    /**
+     * Constructor for content that is fed in chunks, as it becomes available, rather than read
+     * from an input stream. Reading past the content fed so far throws InputUnderflowException,
+     * until the end of the input is signalled.
+     */
+    public ParseReader() {
+        buffer = new char[DEFAULT_BLOCK_SIZE];
+        feeding = true;
     }
 
     /**
@@ -53,8 +122,7 @@ public class ParseReader {
      * @param reader The character input stream.
      */
     public ParseReader(Reader reader) {
-        stream = reader;
-        pushbackQueue = new Stack<Character>();
+        this(reader, null, DEFAULT_BLOCK_SIZE);
     }
 
     /**
@@ -63,9 +131,261 @@ public class ParseReader {
      * @param filename Optional filename or URL to identify the stream.
      */
     public ParseReader(Reader reader, String filename) {
+        this(reader, filename, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Constructor for the ParseReader class.
+     * @param reader The character input stream.
+     * @param filename Optional filename or URL to identify the stream.
+     * @param blockSize Number of characters to read from the stream at a time.
+     */
+    public ParseReader(Reader reader, String filename, int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Block size must be positive.");
+        }
         stream = reader;
         this.filename = filename;
-        pushbackQueue = new Stack<Character>();
+        buffer = new char[blockSize];
+    }
+
+    /**
+     * Constructor using UTF-8 encoded content.
+     * ASCII bytes are passed through without decoding, and only multi-byte sequences are decoded.
+     * @param utf8 UTF-8 encoded content.
+     */
+    public ParseReader(byte[] utf8) {
+        this(ByteBuffer.wrap(utf8));
+    }
+
+    /**
+     * Constructor using UTF-8 encoded content, from the buffer position up to its limit.
+     * ASCII bytes are passed through without decoding, and only multi-byte sequences are decoded.
+     * @param utf8 UTF-8 encoded content.
+     */
+    public ParseReader(ByteBuffer utf8) {
+        this(new Utf8Reader(utf8), null, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Constructor using an HTML byte stream, in a character set declared by a byte order
+     * mark or a meta element in the first few KB of the document, otherwise UTF-8.
+     * @param input Byte input stream.
+     * @throws IOException Occurs if failed to read from input.
+     */
+    public ParseReader(InputStream input) throws IOException {
+        this(input, CharsetDetector.UTF8, null);
+    }
+
+    /**
+     * Constructor using an HTML byte stream, in a character set declared by a byte order
+     * mark or a meta element in the first few KB of the document.
+     * @param input Byte input stream.
+     * @param defaultCharset Character set used when none is declared.
+     * @param filename Optional filename or URL to identify the stream.
+     * @throws IOException Occurs if failed to read from input.
+     */
+    public ParseReader(InputStream input, Charset defaultCharset, String filename) throws IOException {
+        this(CharsetDetector.open(input, defaultCharset), filename, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * This method creates a ParseReader for a file that is memory-mapped, rather than read
+     * onto the heap. The mapped bytes are decoded a block at a time as the file is parsed.
+     * Malformed or unmappable input is replaced, as with an InputStreamReader.
+     * @param file File to be parsed.
+     * @param charset Character set used to decode the file.
+     * @return ParseReader for the file content.
+     * @throws IOException Occurs if the file can't be opened or mapped.
+     */
+    public static ParseReader map(File file, Charset charset) throws IOException {
+        MappedByteBuffer bytes;
+        FileInputStream input = new FileInputStream(file);
+        try {
+            FileChannel channel = input.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("File is too large to be mapped: " + file.getPath());
+            }
+            // The mapping remains valid after the channel is closed.
+            bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            input.close();
+        }
+        if (charset.name().equals("UTF-8")) {
+            return new ParseReader(new Utf8Reader(bytes), file.getPath());
+        }
+        CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        return new ParseReader(new DecodingReader(bytes, decoder), file.getPath());
+    }
+
+    /**
+     * This method resets the reader to read a content string, as if newly constructed.
+     * The block buffer is reused if the content fits, otherwise it's replaced by a larger one.
+     * @param text Content string.
+     */
+    public void reset(CharSequence text) {
+        int length = text.length();
+        if (length > buffer.length) buffer = new char[length];
+        if (text instanceof String) {
+            ((String) text).getChars(0, length, buffer, 0);
+        } else {
+            for (int i = 0; i < length; i++) buffer[i] = text.charAt(i);
+        }
+        stream = null;
+        filename = null;
+        feeding = false;
+        textLength = length;
+        restart();
+    }
+
+    /** This method resets the reader for content to be fed in chunks, as if newly constructed. */
+    public void reset() {
+        stream = null;
+        filename = null;
+        feeding = true;
+        if (buffer.length == 0) buffer = new char[DEFAULT_BLOCK_SIZE];
+        textLength = 0;
+        restart();
+    }
+
+    /**
+     * This method resets the reader to read a character input stream, as if newly constructed.
+     * The block buffer is reused, so the block size is the capacity already allocated.
+     * @param reader The character input stream.
+     */
+    public void reset(Reader reader) {
+        reset(reader, null);
+    }
+
+    /**
+     * This method resets the reader to read a character input stream, as if newly constructed.
+     * The block buffer is reused, so the block size is the capacity already allocated.
+     * @param reader The character input stream.
+     * @param filename Optional filename or URL to identify the stream.
+     */
+    public void reset(Reader reader, String filename) {
+        stream = reader;
+        this.filename = filename;
+        feeding = false;
+        if (buffer.length == 0) buffer = new char[DEFAULT_BLOCK_SIZE];
+        textLength = 0;
+        restart();
+    }
+
+    /** This method clears the read position, pushback, line starts and checksum, to start reading again. */
+    private void restart() {
+        pushbackCount = 0;
+        position = 0;
+        limit = 0;
+        endOfStream = false;
+        blockStart = 0;
+        mark = -1;
+        lastReadOffset = -1;
+        lineStartCount = 0;
+        sourceOffsets = null;
+        if (checksum != null) checksum.reset();
+        if (decoder != null) {
+            decoder.reset();
+            partialBytes.clear();
+        }
+    }
+
+    /**
+     * This method adds a chunk of content to be read, for a reader constructed without an input stream.
+     * Slices of the content read before are no longer valid, as the characters may be moved.
+     * @param chunk Characters from the buffer position up to its limit, which are all consumed.
+     */
+    public void feed(CharBuffer chunk) {
+        checkFeeding();
+        int length = chunk.remaining();
+        ensureFeedCapacity(length);
+        chunk.get(buffer, limit, length);
+        limit += processBlock(limit, length);
+    }
+
+    /**
+     * This method adds a chunk of UTF-8 encoded content to be read, for a reader constructed without an
+     * input stream. A character may be split between chunks. Malformed input is replaced.
+     * Slices of the content read before are no longer valid, as the characters may be moved.
+     * @param chunk Bytes from the buffer position up to its limit, which are all consumed.
+     */
+    public void feed(ByteBuffer chunk) {
+        checkFeeding();
+        if (decoder == null) {
+            decoder = CharsetDetector.UTF8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            partialBytes = ByteBuffer.allocate(8);
+        }
+
+        // There is never more than one character for each byte.
+        ensureFeedCapacity(partialBytes.position() + chunk.remaining());
+        CharBuffer out = CharBuffer.wrap(buffer, limit, buffer.length - limit);
+
+        // Complete the character split from the last chunk, a byte at a time.
+        while (partialBytes.position() > 0 && chunk.hasRemaining()) {
+            partialBytes.put(chunk.get());
+            partialBytes.flip();
+            decoder.decode(partialBytes, out, false);
+            partialBytes.compact();
+        }
+
+        // Keep any incomplete character at the end of this chunk for the next.
+        decoder.decode(chunk, out, false);
+        partialBytes.put(chunk);
+        limit += processBlock(limit, out.position() - limit);
+    }
+
+    /**
+     * This method signals that all of the content has been fed, so that reading past it returns EOF.
+     */
+    public void endOfInput() {
+        checkFeeding();
+        if (decoder != null) {
+            partialBytes.flip();
+            ensureFeedCapacity(partialBytes.remaining() + 1);
+            CharBuffer out = CharBuffer.wrap(buffer, limit, buffer.length - limit);
+            decoder.decode(partialBytes, out, true);
+            decoder.flush(out);
+            partialBytes.clear();
+            limit += processBlock(limit, out.position() - limit);
+        }
+        endOfStream = true;
+    }
+
+    /** This method checks that more content can be fed to this reader. */
+    private void checkFeeding() {
+        if (!feeding) {
+            throw new IllegalStateException("Content can only be fed to a reader without an input stream.");
+        }
+        if (endOfStream) {
+            throw new IllegalStateException("End of input has already been signalled.");
+        }
+    }
+
+    /**
+     * This method makes room at the end of the block buffer for content being fed. The characters
+     * before the read position and the mark are discarded, and the buffer grows if still required.
+     * @param extra Number of characters to be added.
+     */
+    private void ensureFeedCapacity(int extra) {
+        if (limit + extra <= buffer.length) return;
+        int keepFrom = mark >= blockStart ? mark - blockStart : position;
+        int keep = limit - keepFrom;
+        char[] target = buffer;
+        if (keep + extra > buffer.length) {
+            target = new char[Math.max(keep + extra, buffer.length * 2)];
+        } else if (mark >= blockStart && keepFrom > 0) {
+            // Slices of the marked characters may already have been taken, so they aren't moved within this buffer.
+            target = new char[buffer.length];
+        }
+        System.arraycopy(buffer, keepFrom, target, 0, keep);
+        buffer = target;
+        blockStart += keepFrom;
+        position -= keepFrom;
+        limit = keep;
     }
 
     /**
@@ -78,101 +398,409 @@ public class ParseReader {
 
     /**
      * Push character back into the stream.
+     * When the character is the one last read from the block buffer, the read position is
+     * simply moved back, otherwise it's added to the pushback buffer.
      * @param c Character to push back into the stream.
      */
     public void pushback(char c) {
-        log.info("Pushback Char: '{}'", c);
-        pushbackQueue.push(c);
+        if (pushbackCount == 0 && position > 0 && buffer[position - 1] == c) {
+            position--;
+        } else {
+            ensurePushbackCapacity(1);
+            pushbackBuffer[pushbackCount++] = c;
+        }
     }
 
     /**
      * Push whole string back into the stream.
+     * When the string matches the characters last read from the block buffer, the read
+     * position is simply moved back, otherwise it's added to the pushback buffer.
      * @param str String to push back into the stream.
      */
-    public void pushback(String str) {
-        log.info("Pushback String: \"{}\"", str);
-        for (int i = str.length() - 1; i > -1; i--) {
-            pushbackQueue.push(str.charAt(i));
+    public void pushback(CharSequence str) {
+        int length = str.length();
+        if (pushbackCount == 0 && isLastRead(str)) {
+            position -= length;
+        } else {
+            ensurePushbackCapacity(length);
+            for (int i = length - 1; i > -1; i--) {
+                pushbackBuffer[pushbackCount++] = str.charAt(i);
+            }
+        }
+    }
+
+    /**
+     * This checks if the characters are the same as those last read from the block buffer.
+     * @param str Characters to compare.
+     * @return True if the characters immediately before the read position match.
+     */
+    private boolean isLastRead(CharSequence str) {
+        int length = str.length();
+        if (length > position) return false;
+        for (int i = 0, j = position - length; i < length; i++, j++) {
+            if (buffer[j] != str.charAt(i)) return false;
         }
+        return true;
     }
 
-    /** @return The current line number. */
+    /**
+     * This method grows the pushback buffer, when required, to hold more characters.
+     * @param extra Number of characters to be pushed back.
+     */
+    private void ensurePushbackCapacity(int extra) {
+        int required = pushbackCount + extra;
+        if (required > pushbackBuffer.length) {
+            char[] grown = new char[Math.max(required, pushbackBuffer.length * 2)];
+            System.arraycopy(pushbackBuffer, 0, grown, 0, pushbackCount);
+            pushbackBuffer = grown;
+        }
+    }
+
+    /**
+     * Getter for the position tracking option property.
+     * @return True if line start offsets are recorded.
+     */
+    public boolean isPositionTracking() {
+        return positionTracking;
+    }
+
+    /**
+     * Setter for the position tracking option property. This should be set before reading,
+     * as it only affects the lines read afterwards. Without position tracking, the line and
+     * column numbers are not available and errors are reported by character offset instead.
+     * @param positionTracking Option to record line start offsets.
+     */
+    public void setPositionTracking(boolean positionTracking) {
+        this.positionTracking = positionTracking;
+    }
+
+    /** @return The current line number, or 0 if position tracking is disabled. */
     public int getLineNumber() {
-        return lineNumber;
+        return getLineNumber(getCharCount());
     }
 
-    /** @return The current column position. */
+    /** @return The current column position, or 0 if position tracking is disabled. */
     public int getColumnNumber() {
-        return columnNumber;
+        return getColumnNumber(getCharCount());
     }
 
-    /** @return The character read count. */
+    /**
+     * This method finds the line number for a character offset.
+     * @param offset Character offset, such as the character count when an error was found.
+     * @return The line number, or 0 if position tracking is disabled.
+     */
+    public int getLineNumber(int offset) {
+        if (!positionTracking) return 0;
+        return findLine(offset) + 1;
+    }
+
+    /**
+     * This method finds the column position for a character offset.
+     * @param offset Character offset, such as the character count when an error was found.
+     * @return The column position, or 0 if position tracking is disabled.
+     */
+    public int getColumnNumber(int offset) {
+        if (!positionTracking) return 0;
+        int line = findLine(offset);
+        return line == 0 ? offset : offset - lineStarts[line - 1];
+    }
+
+    /** @return The character read count, not including any linefeed characters removed. */
     public int getCharCount() {
-        return charCount;
+        return blockStart + position;
     }
 
-    /** @return The current stream checksum. */
-    public char getChecksum() {
-        return checksum;
+    /** @return The checksum of the characters read into the block buffer, or 0 if there's no checksum. */
+    public long getChecksum() {
+        return checksum == null ? 0 : checksum.getValue();
     }
 
     /**
-     * This method reads a single character from the raw input stream.
-     * @return Next character from input.
-     * @throws IOException Thrown by character stream Reader.
+     * Sets the checksum to be updated with the content. This should be set before reading.
+     * The default is the 16-bit XorChecksum. Use Crc32cChecksum or XxHash64Checksum to tell
+     * documents apart, or null for no checksum at all.
+     * @param checksum Content checksum, or null.
      */
-    private char rawRead() throws IOException {
-        char c = (char) stream.read();
-        if (c != EOF) {
+    public void setChecksum(ContentChecksum checksum) {
+        this.checksum = checksum;
+    }
 
-            // Count new lines and track column position.
-            if (c == '\n') {
-                lineNumber += 1;
-                columnNumber = 0;
+    /**
+     * This method counts the lines that start at or before the character offset.
+     * @param offset Character offset.
+     * @return Number of new lines before the offset.
+     */
+    private int findLine(int offset) {
+        int low = 0;
+        int high = lineStartCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (lineStarts[middle] <= offset) {
+                low = middle + 1;
             } else {
-                columnNumber++;
+                high = middle;
             }
+        }
+        return low;
+    }
+
+    /**
+     * This method records the start of a new line.
+     * @param offset Character offset of the start of the line.
+     */
+    private void addLineStart(int offset) {
+        if (lineStartCount == lineStarts.length) {
+            int[] grown = new int[lineStarts.length * 2];
+            System.arraycopy(lineStarts, 0, grown, 0, lineStartCount);
+            lineStarts = grown;
+        }
+        lineStarts[lineStartCount++] = offset;
+    }
 
-            // Count characters read.
-            charCount++;
+    /**
+     * This method starts tracking the byte offsets of the characters in the UTF-8 source, so that text
+     * can be copied to UTF-8 output as its original bytes. This is only possible when reading UTF-8
+     * content that is all in memory, such as a byte array or a memory-mapped file, before anything is read.
+     * @return True if the byte offsets are tracked.
+     */
+    boolean trackSourceOffsets() {
+        if (sourceOffsets != null) return true;
+        if (!(stream instanceof Utf8Reader) || blockStart > 0 || limit > 0) return false;
+        ByteBuffer source = ((Utf8Reader) stream).getSource();
+        if (source == null) return false;
+        sourceOffsets = new Utf8Offsets(source);
+        return true;
+    }
+
+    /**
+     * This method copies the UTF-8 source bytes of some text, if it's a slice of the block buffer
+     * and the characters match the source.
+     * @param text Text, which may be a slice of the block buffer.
+     * @param start Index of the first character to copy.
+     * @param end Index after the last character to copy.
+     * @param out UTF-8 output.
+     * @return False if nothing was written, and the characters need to be encoded instead.
+     * @throws IOException Occurs if failed to write to the output.
+     */
+    boolean copySource(CharSequence text, int start, int end, Utf8Writer out) throws IOException {
+        if (sourceOffsets == null || !(text instanceof CharSpan)) return false;
+        CharSpan span = (CharSpan) text;
+        if (span.array() != buffer) return false;
+        int offset = blockStart + span.arrayOffset();
+        return sourceOffsets.copyTo(out, offset + start, offset + end);
+    }
+
+    /**
+     * This method marks the current position, so that characters read from here on are kept
+     * in the block buffer and can be sliced, until the mark is moved or cleared.
+     */
+    void mark() {
+        mark = blockStart + position;
+    }
+
+    /** This method clears the mark, so that the block buffer can be refilled without keeping any characters. */
+    void clearMark() {
+        mark = -1;
+    }
 
-            // Update the checkum.
-            updateChecksum(c);
+    /**
+     * This method finds the offset of the last character read, if it was read from the block buffer.
+     * @param c The character expected to have been read last.
+     * @return Offset in the stream, or -1 if the last character read was not c or came from the pushback buffer.
+     */
+    int getReadOffset(char c) {
+        if (lastReadOffset < blockStart || buffer[lastReadOffset - blockStart] != c) return -1;
+        return lastReadOffset;
+    }
+
+    /**
+     * This method returns a character that has been read from the block buffer and is still held there.
+     * @param offset Offset in the stream, at or after the mark.
+     * @return The character at the offset.
+     */
+    char charAt(int offset) {
+        return buffer[offset - blockStart];
+    }
+
+    /**
+     * This method returns a view of characters that have been read from the block buffer,
+     * without copying them. The view is only valid until the block buffer is next refilled
+     * or the characters before the mark are discarded.
+     * @param start Offset in the stream of the first character, at or after the mark.
+     * @param end Offset in the stream after the last character.
+     * @return Character sequence view.
+     */
+    CharSpan slice(int start, int end) {
+        return new CharSpan(buffer, start - blockStart, end - blockStart);
+    }
+
+    /**
+     * This method appends characters that have been read from the block buffer and are still held there.
+     * @param builder The string builder to append to.
+     * @param start Offset in the stream of the first character, at or after the mark.
+     * @param end Offset in the stream after the last character.
+     */
+    void appendTo(StringBuilder builder, int start, int end) {
+        builder.append(buffer, start - blockStart, end - start);
+    }
+
+    /**
+     * This method reads ahead through the characters held in the block buffer for as long as they are
+     * in a set, so that a run of characters can be taken in one go. It doesn't refill the block buffer,
+     * and reads nothing while there are characters pushed back.
+     * @param set Flags for the characters below 256 in the set, then one flag for all the characters
+     *            from 256 up. EOF is never in the set.
+     * @return Number of characters read, which end at the current character count.
+     */
+    int readRun(boolean[] set) {
+        if (pushbackCount > 0) return 0;
+        int i = runEnd(buffer, position, limit, set);
+        int count = i - position;
+        if (count > 0) {
+            position = i;
+            lastReadOffset = blockStart + i - 1;
         }
-        return c;
+        return count;
     }
 
     /**
-     * This method reads a single character from the input buffer.
-     * @return Next character from input.
+     * This method finds the end of a run of characters in a set.
+     *
+     * The first few characters are checked one at a time, as most runs are short words. Longer runs,
+     * such as attribute values, are then checked eight characters at a time, with a single branch
+     * for each block while they're all in the set and below 256.
+     * @param buffer Characters to check.
+     * @param start Index of the first character to check.
+     * @param end Index after the last character to check.
+     * @param set Flags for the characters below 256 in the set, then one flag for all the characters
+     *            from 256 up. EOF is never in the set.
+     * @return Index of the first character not in the set, or end.
+     */
+    static int runEnd(char[] buffer, int start, int end, boolean[] set) {
+        int i = start;
+        int blockEnd = end - 7;
+        int stop = Math.min(i + 8, end);
+        while (true) {
+            while (i < stop) {
+                char c = buffer[i];
+                if (c < 256 ? !set[c] : !set[256] || c == EOF) break;
+                i++;
+            }
+            if (i < stop || i == end) break;
+
+            while (i < blockEnd) {
+                char c0 = buffer[i], c1 = buffer[i + 1], c2 = buffer[i + 2], c3 = buffer[i + 3];
+                char c4 = buffer[i + 4], c5 = buffer[i + 5], c6 = buffer[i + 6], c7 = buffer[i + 7];
+                if ((c0 | c1 | c2 | c3 | c4 | c5 | c6 | c7) >= 256 ||
+                        !(set[c0] & set[c1] & set[c2] & set[c3] & set[c4] & set[c5] & set[c6] & set[c7])) break;
+                i += 8;
+            }
+            stop = Math.min(i + 8, end);
+        }
+        return i;
+    }
+
+    /**
+     * This method refills the block buffer from the raw input stream.
+     * Any characters from the mark onwards are moved to the start of the block buffer, which
+     * grows if they fill it, and the rest of the buffer is read from the input stream.
+     * @return False if the end of the input stream has been reached.
      * @throws IOException Thrown by character stream Reader.
+     * @throws InputUnderflowException Content is being fed and the next chunk hasn't been fed yet.
      */
-    public char read() throws IOException {
-        char nextChar;
-        do {
+    private boolean fill() throws IOException {
+        if (endOfStream) return false;
+        if (feeding) throw new InputUnderflowException();
 
-            // Pop last character on the queue if there are items pushed-back.
-            if (pushbackQueue.size() > 0) {
-                nextChar = pushbackQueue.pop();
-            } else {
-                nextChar = rawRead();
+        // Account for the block that has been read before it is overwritten.
+        int keepFrom = mark >= blockStart ? mark - blockStart : limit;
+        int keep = limit - keepFrom;
+        if (keep == buffer.length) {
+            char[] grown = new char[buffer.length * 2];
+            System.arraycopy(buffer, keepFrom, grown, 0, keep);
+            buffer = grown;
+        } else if (keep > 0 && keepFrom > 0) {
+            // Slices of the marked characters may already have been taken, such as attribute
+            // values earlier in the same tag, so they're moved to a new buffer rather than within this one.
+            char[] moved = new char[buffer.length];
+            System.arraycopy(buffer, keepFrom, moved, 0, keep);
+            buffer = moved;
+        }
+        blockStart += keepFrom;
+        position = keep;
+        limit = keep;
+        if (sourceOffsets != null) sourceOffsets.discardBefore(blockStart);
+
+        // Content string is already in the block buffer, but processed on first read.
+        if (stream == null) {
+            endOfStream = true;
+            limit = processBlock(0, textLength);
+            return limit > 0;
+        }
+
+        // Keep reading until there's at least one character left after removing linefeeds.
+        while (limit == position) {
+            int count = stream.read(buffer, limit, buffer.length - limit);
+            if (count < 0) {
+                endOfStream = true;
+                return false;
+            }
+            if (sourceOffsets != null && ((Utf8Reader) stream).isMalformed()) {
+                sourceOffsets.setUnmatchedFrom(blockStart + limit);
             }
+            limit += processBlock(limit, count);
+        }
+        return true;
+    }
+
+    /**
+     * This method updates the checksum, removes linefeed characters and records the start of
+     * each line, for a block of characters that have been read into the block buffer.
+     * @param offset Start of the characters in the block buffer.
+     * @param length Number of characters read.
+     * @return Number of characters remaining after linefeeds are removed.
+     */
+    private int processBlock(int offset, int length) {
+        if (checksum != null) checksum.update(buffer, offset, length);
 
-        } while (nextChar == '\r'); // Ignore linefeed.
+        int end = offset + length;
+        int out = offset;
+        for (int i = offset; i < end; i++) {
+            char c = buffer[i];
 
-        log.info("Char: {}", Parser.toNameString(nextChar));
-        return nextChar;
+            // Ignore linefeed.
+            if (c != '\r') {
+                buffer[out++] = c;
+                if (c == '\n' && positionTracking) addLineStart(blockStart + out);
+                if (c >= 0x80 && sourceOffsets != null) sourceOffsets.addChar(blockStart + out - 1, c);
+            } else if (sourceOffsets != null) {
+                sourceOffsets.addRemoved(blockStart + out);
+            }
+        }
+        return out - offset;
     }
 
     /**
-     * This method is used to update the checksum for the stream.
-     * @param nextChar The next character on the input stream.
+     * This method reads a single character from the input buffer.
+     * @return Next character from input.
+     * @throws IOException Thrown by character stream Reader.
+     * @throws InputUnderflowException Content is being fed and the next chunk hasn't been fed yet.
      */
-    private void updateChecksum(char nextChar) {
-        // http://atlas.csd.net/~cgadd/knowbase/CRC0013.HTM
-        // xor char with the checksum
-        if (nextChar != (char) -1) {
-            checksum ^= nextChar;
+    public char read() throws IOException {
+        char nextChar;
+
+        // Take the last character from the pushback buffer if there are items pushed-back.
+        if (pushbackCount > 0) {
+            nextChar = pushbackBuffer[--pushbackCount];
+            lastReadOffset = -1;
+        } else if (position < limit || fill()) {
+            lastReadOffset = blockStart + position;
+            nextChar = buffer[position++];
+        } else {
+            nextChar = EOF;
+            lastReadOffset = -1;
         }
+
+        return nextChar;
     }
 }
@@ -1,5 +1,7 @@
 package stever.tagparser;
 
+import java.io.IOException;
+
 public abstract class ParseToken {
 
     protected ParseToken() {
@@ -20,5 +22,20 @@ public abstract class ParseToken {
      * This method should render to a string equivalent to a parsed source.
      * @return String representation of the token value.
      */
-    public abstract String render();
+    public String render() {
+        StringBuilder result = new StringBuilder();
+        try {
+            renderTo(result);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex); // Not thrown by StringBuilder.
+        }
+        return result.toString();
+    }
+
+    /**
+     * This method writes the same text as render() straight to the output, without building a string.
+     * @param out Output to append to.
+     * @throws IOException Occurs if failed to write to the output.
+     */
+    public abstract void renderTo(Appendable out) throws IOException;
 }
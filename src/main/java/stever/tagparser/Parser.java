@@ -3,6 +3,9 @@ package stever.tagparser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 public abstract class Parser {
 
@@ -10,11 +13,21 @@ public abstract class Parser {
 
     private Enum state;
 
+    /** Logger for diagnostics, in the category of the concrete parser class. */
+    private final Logger diagnosticLog = LoggerFactory.getLogger(getClass());
+
+    /** Diagnostics reported while parsing the current stream, up to the maximum number to keep. */
+    private final List<ParseDiagnostic> diagnostics = new ArrayList<ParseDiagnostic>();
+    private int maxDiagnostics = 100;
+    private ParseDiagnosticListener diagnosticListener = null;
+    private boolean logDiagnostics = true;
+
     protected ParseReader stream; // Character input stream.
     protected int maxErrors;
     protected int numErrors;
     protected int numWarnings;
     protected int numRecoveries;
+    protected TraceRecorder trace; // Optional record of the last characters read.
 
     /**
      * This is the constructor for the abstract parser class.
@@ -36,6 +49,165 @@ public abstract class Parser {
         numErrors = 0;
         numWarnings = 0;
         numRecoveries = 0;
+        diagnostics.clear();
+    }
+
+    /**
+     * This method resets the parser to its initial state, to parse another input stream.
+     * @param stream Character input stream.
+     * @param initialState Initial state of the parser.
+     */
+    protected void reset(ParseReader stream, Enum initialState) {
+        state = initialState;
+        init(stream);
+        if (trace != null) trace.clear();
+    }
+
+    /**
+     * Gets the trace recorder.
+     * @return Trace recorder, or null if tracing is disabled.
+     */
+    public TraceRecorder getTraceRecorder() {
+        return trace;
+    }
+
+    /**
+     * Sets a trace recorder to keep the last characters read, with the parser state for each.
+     * The trace is logged with each error, to show how the parser got there. Tracing is
+     * disabled by default.
+     * @param trace Trace recorder, or null to disable tracing.
+     */
+    public void setTraceRecorder(TraceRecorder trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * Gets the diagnostics reported while parsing, up to the maximum number to keep.
+     * @return Read-only list of diagnostics, in the order they were reported.
+     */
+    public List<ParseDiagnostic> getDiagnostics() {
+        return Collections.unmodifiableList(diagnostics);
+    }
+
+    /**
+     * Gets the maximum number of diagnostics kept by the parser.
+     * @return Maximum number of diagnostics kept.
+     */
+    public int getMaxDiagnostics() {
+        return maxDiagnostics;
+    }
+
+    /**
+     * Sets the maximum number of diagnostics kept by the parser. Any more are still counted,
+     * logged and sent to the listener. The default is 100.
+     * @param maxDiagnostics Maximum number of diagnostics kept, or 0 to keep none.
+     */
+    public void setMaxDiagnostics(int maxDiagnostics) {
+        this.maxDiagnostics = maxDiagnostics;
+    }
+
+    /**
+     * Sets a listener to be sent each diagnostic as it is reported.
+     * @param diagnosticListener Diagnostic listener, or null for none.
+     */
+    public void setDiagnosticListener(ParseDiagnosticListener diagnosticListener) {
+        this.diagnosticListener = diagnosticListener;
+    }
+
+    /**
+     * Gets the option to log each diagnostic as it is reported.
+     * @return True if diagnostics are logged.
+     */
+    public boolean isLogDiagnostics() {
+        return logDiagnostics;
+    }
+
+    /**
+     * Sets the option to log each diagnostic as it is reported. Diagnostics are still counted,
+     * kept and sent to the listener when they aren't logged. Logging is enabled by default.
+     * @param logDiagnostics Option to log diagnostics.
+     */
+    public void setLogDiagnostics(boolean logDiagnostics) {
+        this.logDiagnostics = logDiagnostics;
+    }
+
+    /** @return Number of errors reported, not including those recovered. */
+    public int getErrorCount() {
+        return numErrors;
+    }
+
+    /** @return Number of errors recovered. */
+    public int getRecoveryCount() {
+        return numRecoveries;
+    }
+
+    /** @return Number of warnings reported. */
+    public int getWarningCount() {
+        return numWarnings;
+    }
+
+    /**
+     * This method reports a diagnostic for the character being parsed in the current state.
+     * @param kind Kind of diagnostic.
+     * @param c The character being parsed.
+     * @throws MaxErrorsException Maximum number of errors reached.
+     */
+    protected void report(ParseDiagnostic.Kind kind, char c) throws MaxErrorsException {
+        report(kind, c, null);
+    }
+
+    /**
+     * This method reports a diagnostic for the character being parsed in the current state.
+     * It's counted, kept, sent to the listener and logged if enabled, and the trace is logged with errors.
+     * The message text is only produced if it is logged.
+     * @param kind Kind of diagnostic.
+     * @param c The character being parsed.
+     * @param detail Optional text, such as the name that wasn't recognised.
+     * @throws MaxErrorsException Maximum number of errors reached.
+     */
+    protected void report(ParseDiagnostic.Kind kind, char c, String detail) throws MaxErrorsException {
+        ParseDiagnostic diagnostic = diagnose(kind, state, c, detail);
+        if (diagnostics.size() < maxDiagnostics) diagnostics.add(diagnostic);
+        if (diagnosticListener != null) diagnosticListener.reportDiagnostic(diagnostic);
+
+        switch (kind.getSeverity()) {
+            case ERROR: {
+                if (logDiagnostics) diagnosticLog.error("{}", diagnostic);
+                if (logDiagnostics && trace != null) {
+                    log.error("Trace of the last {} characters read:\n{}", trace.size(), trace);
+                }
+                if (++numErrors >= maxErrors) {
+                    throw new MaxErrorsException();
+                }
+                break;
+            }
+
+            case RECOVERY: {
+                if (logDiagnostics) diagnosticLog.warn("{}", diagnostic);
+                numRecoveries++;
+                break;
+            }
+
+            case WARNING: {
+                if (logDiagnostics) diagnosticLog.warn("{}", diagnostic);
+                numWarnings++;
+                break;
+            }
+        }
+    }
+
+    /**
+     * This method records a diagnostic at the current position, without reporting it.
+     * @param kind Kind of diagnostic.
+     * @param state The parser state.
+     * @param c The character being parsed.
+     * @param detail Optional text, such as the name that wasn't recognised.
+     * @return The diagnostic.
+     */
+    private ParseDiagnostic diagnose(ParseDiagnostic.Kind kind, Enum state, char c, String detail) {
+        int offset = stream.getCharCount();
+        return new ParseDiagnostic(kind, state, c, offset,
+                stream.getLineNumber(offset), stream.getColumnNumber(offset), detail);
     }
 
     /**
@@ -52,13 +224,7 @@ public abstract class Parser {
      * @param state Parser machine state.
      */
     protected void setState(Enum state) {
-        if (this.state != state) {
-            if (this.state == null) {
-                log.info("Initial state is {}.", state);
-            } else {
-                log.info("Changing state {} to {} state.", this.state, state);
-            }
-        } else {
+        if (this.state == state) {
             log.warn("Changing to same state! ({})", state);
         }
         this.state = state;
@@ -82,9 +248,9 @@ public abstract class Parser {
 
     /**
      * Gets the checksum for the characters read.
-     * @return The current stream checksum.
+     * @return The current stream checksum, or 0 if the stream has no checksum.
      */
-    public char getChecksum() {
+    public long getChecksum() {
         return stream.getChecksum();
     }
 
@@ -95,14 +261,7 @@ public abstract class Parser {
      * @return The warning message.
      */
     protected String getCharDefaultAcceptWarningMessage(char c, Enum state) {
-        return (new StringBuilder())
-                .append("Character ").append(toNameString(c))
-                .append(" defaulted from the ")
-                .append(state.toString())
-                .append(" state (")
-                .append(getCharacterPosition())
-                .append(')')
-                .toString();
+        return diagnose(ParseDiagnostic.Kind.DEFAULT_ACCEPT, state, c, null).getMessage();
     }
 
     /**
@@ -112,15 +271,7 @@ public abstract class Parser {
      * @return The error message.
      */
     protected String getInvalidCharErrorMessage(char c, Enum state) {
-        return (new StringBuilder())
-                .append("Character ")
-                .append(toNameString(c))
-                .append(" cannot be accepted from the ")
-                .append(state.toString())
-                .append(" state (")
-                .append(getCharacterPosition())
-                .append(')')
-                .toString();
+        return diagnose(ParseDiagnostic.Kind.INVALID_CHAR, state, c, null).getMessage();
     }
 
     /**
@@ -131,15 +282,7 @@ public abstract class Parser {
      * @return Error message for when invalid character found.
      */
     protected String getEdgeUnknownErrorMessage(char edge, Enum state) {
-        return (new StringBuilder())
-                .append("No edge labelled ")
-                .append(toNameString(edge))
-                .append(" from the ")
-                .append(state.toString())
-                .append(" state (")
-                .append(getCharacterPosition())
-                .append(')')
-                .toString();
+        return diagnose(ParseDiagnostic.Kind.UNKNOWN_EDGE, state, edge, null).getMessage();
     }
 
     /**
@@ -147,9 +290,22 @@ public abstract class Parser {
      * @return Character position prefix.
      */
     public String getCharacterPosition() {
+        return getCharacterPosition(stream.getCharCount());
+    }
+
+    /**
+     * Produces the line number and column number for a character offset, worked out from
+     * the line start offsets, or the offset itself when position tracking is disabled.
+     * @param offset Character offset in the input stream.
+     * @return Character position prefix.
+     */
+    public String getCharacterPosition(int offset) {
+        if (!stream.isPositionTracking()) {
+            return (new StringBuilder()).append('@').append(offset).toString();
+        }
         return (new StringBuilder())
-            .append(stream.getLineNumber())
-            .append(':').append(stream.getColumnNumber())
+            .append(stream.getLineNumber(offset))
+            .append(':').append(stream.getColumnNumber(offset))
             .toString();
     }
 
@@ -160,10 +316,12 @@ public abstract class Parser {
     public String getCompletionReport() {
         StringBuilder report = new StringBuilder();
         report.append("Parsed ");
-        report.append(stream.getLineNumber());
-        report.append(" line");
-        if (stream.getLineNumber() > 1) report.append('s');
-        report.append(" containing ");
+        if (stream.isPositionTracking()) {
+            report.append(stream.getLineNumber());
+            report.append(" line");
+            if (stream.getLineNumber() > 1) report.append('s');
+            report.append(" containing ");
+        }
         report.append(stream.getCharCount());
         report.append(" characters.");
         if ((numErrors + numRecoveries) > 0 || numWarnings > 0) {
@@ -1,5 +1,7 @@
 package stever.tagparser;
 
+import java.io.IOException;
+
 public class ProcessingInstructionToken extends ParseToken {
 
     private String target;
@@ -24,9 +26,7 @@ public class ProcessingInstructionToken extends ParseToken {
         return result.toString();
     }
 
-    public String render() {
-        StringBuilder result = new StringBuilder();
-        result.append("<?").append(target).append(' ').append(data).append("?>");
-        return result.toString();
+    public void renderTo(Appendable out) throws IOException {
+        out.append("<?").append(target).append(' ').append(data).append("?>");
     }
 }
@@ -1,13 +1,32 @@
 package stever.tagparser;
 
+import java.io.IOException;
+
 public class PunctuationToken extends ParseToken {
 
-    private char character;
+    /** Shared instances for the ASCII characters. */
+    private static final PunctuationToken[] cache = new PunctuationToken[128];
+    static {
+        for (char c = 0; c < cache.length; c++) {
+            cache[c] = new PunctuationToken(c);
+        }
+    }
+
+    private final char character;
 
     public PunctuationToken(char c) {
         character = c;
     }
 
+    /**
+     * Returns a punctuation token, which is shared for ASCII characters.
+     * @param c Punctuation character.
+     * @return Punctuation token.
+     */
+    public static PunctuationToken valueOf(char c) {
+        return c < cache.length ? cache[c] : new PunctuationToken(c);
+    }
+
     public char getCharacter() {
         return character;
     }
@@ -19,6 +38,10 @@ public class PunctuationToken extends ParseToken {
     }
 
     public String render() {
-        return new Character(character).toString();
+        return String.valueOf(character);
+    }
+
+    public void renderTo(Appendable out) throws IOException {
+        out.append(character);
     }
 }
@@ -1,14 +1,20 @@
 package stever.tagparser;
 
+import java.io.IOException;
+
 public class ScriptToken extends ParseToken {
 
-    private String script;
+    private CharSequence script;
 
-    public ScriptToken(String script) {
+    public ScriptToken(CharSequence script) {
         this.script = script;
     }
 
     public String getScript() {
+        return script.toString();
+    }
+
+    public CharSequence getText() {
         return script;
     }
 
@@ -19,6 +25,10 @@ public class ScriptToken extends ParseToken {
     }
 
     public String render() {
-        return script;
+        return script.toString();
+    }
+
+    public void renderTo(Appendable out) throws IOException {
+        CharSpan.append(out, script, 0, script.length());
     }
 }
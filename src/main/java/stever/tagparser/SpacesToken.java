@@ -1,14 +1,41 @@
 package stever.tagparser;
 
+import java.io.IOException;
+
 public class SpacesToken extends ParseToken {
 
-    private String spaces;
+    /** Shared instances for the most common runs of spaces. */
+    private static final SpacesToken SPACE = new SpacesToken(" ");
+    private static final SpacesToken TAB = new SpacesToken("\t");
+
+    private final CharSequence spaces;
 
-    public SpacesToken(String spaces) {
+    public SpacesToken(CharSequence spaces) {
         this.spaces = spaces;
     }
 
+    /**
+     * Returns a spaces token, which is shared for a single space or tab.
+     * @param spaces Space characters.
+     * @return Spaces token.
+     */
+    public static SpacesToken valueOf(CharSequence spaces) {
+        if (spaces.length() == 1) {
+            switch (spaces.charAt(0)) {
+                case ' ':
+                    return SPACE;
+                case '\t':
+                    return TAB;
+            }
+        }
+        return new SpacesToken(spaces);
+    }
+
     public String getSpaces() {
+        return spaces.toString();
+    }
+
+    public CharSequence getText() {
         return spaces;
     }
 
@@ -50,6 +77,10 @@ public class SpacesToken extends ParseToken {
     }
 
     public String render() {
-        return spaces;
+        return spaces.toString();
+    }
+
+    public void renderTo(Appendable out) throws IOException {
+        CharSpan.append(out, spaces, 0, spaces.length());
     }
 }
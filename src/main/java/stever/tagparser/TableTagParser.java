@@ -0,0 +1,731 @@
+package stever.tagparser;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This parser produces the same tokens as TagParser, but is driven by tables rather than by a
+ * switch on the state and then on the character. Each character is looked up in a table of
+ * character classes, and the state and character class are looked up in a table of transitions,
+ * which gives the action to take and the next state. Only the actions that do more than append
+ * the character and change state are dispatched on.
+ *
+ * The tables are compiled from rules for each state when the class is loaded, and the character
+ * classes are worked out from the rules, so that characters treated alike in every state share a class.
+ */
+public class TableTagParser extends TagParser {
+
+    private static final Logger log = LoggerFactory.getLogger(TableTagParser.class);
+
+    private static final State[] STATES = State.values();
+
+    // Actions for transitions, stored above the next state in the transition tables.
+    private static final int NONE = 0;
+    private static final int APPEND = 1;
+    private static final int PUSHBACK = 2;
+    private static final int WORD_BREAK = 3;
+    private static final int PUSHBACK_WORD_BREAK = 4;
+    private static final int NEWLINE = 5;
+    private static final int PUNCTUATION = 6;
+    private static final int END_NUMBER = 7;
+    private static final int END_SPACES = 8;
+    private static final int INVALID_RECOVER = 9;
+    private static final int UNKNOWN_EDGE_RECOVER = 10;
+    private static final int UNKNOWN_EDGE_PUSHBACK_RECOVER = 11;
+    private static final int END_TAG = 12;
+    private static final int END_END_TAG = 13;
+    private static final int START_TAG = 14;
+    private static final int AMPERSAND_RECOVER = 15;
+    private static final int END_REF = 16;
+    private static final int REF_RECOVER = 17;
+    private static final int END_HEX = 18;
+    private static final int HEX_RECOVER = 19;
+    private static final int END_DECIMAL = 20;
+    private static final int DECIMAL_RECOVER = 21;
+    private static final int END_COMMENT = 22;
+    private static final int CDATA_CHECK = 23;
+    private static final int END_CDATA = 24;
+    private static final int APPEND_INVALID_RECOVER = 25;
+    private static final int DTD_NAME = 26;
+    private static final int END_DTD = 27;
+    private static final int PI_NAME = 28;
+    private static final int END_PI = 29;
+    private static final int SCRIPT_MISMATCH = 30;
+    private static final int END_SCRIPT = 31;
+    private static final int RETURN_TAG = 32;
+    private static final int RETURN_EMPTY = 33;
+    private static final int ATTRIBUTE_APPEND = 34;
+    private static final int ATTRIBUTE_APPEND_INVALID = 35;
+    private static final int ADD_NAME = 36;
+    private static final int ADD_NAME_RETURN = 37;
+    private static final int ADD_NAME_START = 38;
+    private static final int ADD_NAME_INVALID = 39;
+    private static final int VALUE_APPEND = 40;
+    private static final int VALUE_APPEND_INVALID = 41;
+    private static final int ADD_VALUE = 42;
+    private static final int ADD_VALUE_RETURN = 43;
+
+    private static final String WHITE_SPACE = " \t\n\r";
+    private static final String SPACES = " \t\r";
+    private static final String DIGITS = "0123456789";
+    private static final String HEX_DIGITS = DIGITS + "abcdefABCDEF";
+    private static final String PUNCTUATION_MARKS = "'`!\"^*()-_+=|[]{}:;@~#,.?/\\";
+
+    /** Text appended to a script when the characters after it turn out not to be its end-tag. */
+    private static final String SCRIPT_END_TAG = "</script";
+
+    /** Characters that can be read as a run after appending a character, for the state appended in. */
+    private static final boolean[][] RUNS = new boolean[STATES.length][];
+    static {
+        RUNS[State.INITIAL.ordinal()] = TEXT_CHARS;
+        RUNS[State.TAGNAME.ordinal()] = NAME_CHARS;
+        RUNS[State.NAME1.ordinal()] = NAME_CHARS;
+        RUNS[State.QUOTED.ordinal()] = QUOTED_CHARS;
+        RUNS[State.COMMA.ordinal()] = COMMA_CHARS;
+        RUNS[State.LABEL.ordinal()] = LABEL_CHARS;
+    }
+
+    /** Characters that can be read as a run for each state, with the text tokens option. */
+    private static final boolean[][] TEXT_RUNS = RUNS.clone();
+    static {
+        TEXT_RUNS[State.INITIAL.ordinal()] = DATA_CHARS;
+    }
+
+    /** Character class for each character below 256. */
+    private static final byte[] CHAR_CLASSES = new byte[256];
+
+    /** Character class for the characters from 256 up. */
+    private static final int UNICODE_CLASS;
+
+    /** Number of character classes, which is the length of each state's row in the transition tables. */
+    private static final int CLASS_COUNT;
+
+    /**
+     * Transitions between tokens, between tokens with the text tokens option, and within tags,
+     * as the action shifted left 8 bits and the next state.
+     */
+    private static final int[] TOKEN_TRANSITIONS;
+    private static final int[] TEXT_TRANSITIONS;
+    private static final int[] TAG_TRANSITIONS;
+
+    static {
+        int[][] token = new int[STATES.length][257];
+        int[][] tag = new int[STATES.length][257];
+        String nameFirstChars = getChars(true);
+        String nameChars = getChars(false);
+
+        // Rules for each state, as the default for any character and then for particular characters.
+        on(token, State.RECOVER, NONE, State.RECOVER);
+        on(token, State.RECOVER, ">", NONE, State.INITIAL);
+
+        on(token, State.INITIAL, APPEND, State.INITIAL);
+        on(token, State.INITIAL, "<", WORD_BREAK, State.OPENTAG);
+        on(token, State.INITIAL, "&", WORD_BREAK, State.ENTITY);
+        on(token, State.INITIAL, SPACES, PUSHBACK_WORD_BREAK, State.SPACES);
+        on(token, State.INITIAL, "\n", NEWLINE, State.INITIAL);
+        on(token, State.INITIAL, DIGITS, PUSHBACK_WORD_BREAK, State.NUMBER);
+        on(token, State.INITIAL, PUNCTUATION_MARKS, PUNCTUATION, State.INITIAL);
+
+        on(token, State.NUMBER, END_NUMBER, State.INITIAL);
+        on(token, State.NUMBER, DIGITS, APPEND, State.NUMBER);
+
+        on(token, State.SPACES, END_SPACES, State.INITIAL);
+        on(token, State.SPACES, SPACES, APPEND, State.SPACES);
+
+        on(token, State.OPENTAG, INVALID_RECOVER, State.RECOVER);
+        on(token, State.OPENTAG, nameFirstChars, APPEND, State.TAGNAME);
+        on(token, State.OPENTAG, "!", NONE, State.SGML);
+        on(token, State.OPENTAG, "?", NONE, State.PITARGET);
+        on(token, State.OPENTAG, "/", APPEND, State.ENDTAG1);
+
+        on(token, State.TAGNAME, INVALID_RECOVER, State.RECOVER);
+        on(token, State.TAGNAME, nameChars, APPEND, State.TAGNAME);
+        on(token, State.TAGNAME, ">", END_TAG, State.INITIAL);
+        on(token, State.TAGNAME, WHITE_SPACE, START_TAG, State.TAG);
+        on(token, State.TAGNAME, "/", NONE, State.EMPTY_ELEMENT1);
+
+        on(token, State.EMPTY_ELEMENT1, UNKNOWN_EDGE_RECOVER, State.RECOVER);
+        on(token, State.EMPTY_ELEMENT1, WHITE_SPACE, NONE, State.EMPTY_ELEMENT1);
+        on(token, State.EMPTY_ELEMENT1, ">", END_TAG, State.INITIAL);
+
+        on(token, State.ENTITY, AMPERSAND_RECOVER, State.INITIAL);
+        on(token, State.ENTITY, nameFirstChars, PUSHBACK, State.REF);
+        on(token, State.ENTITY, "#", NONE, State.CHAR);
+
+        on(token, State.REF, REF_RECOVER, State.INITIAL);
+        on(token, State.REF, nameChars, APPEND, State.REF);
+        on(token, State.REF, ";", END_REF, State.INITIAL);
+
+        on(token, State.CHAR, UNKNOWN_EDGE_RECOVER, State.RECOVER);
+        on(token, State.CHAR, DIGITS, APPEND, State.DECIMAL);
+        on(token, State.CHAR, "xX", NONE, State.HEX);
+
+        on(token, State.HEX, HEX_RECOVER, State.INITIAL);
+        on(token, State.HEX, HEX_DIGITS, APPEND, State.HEX);
+        on(token, State.HEX, ";", END_HEX, State.INITIAL);
+
+        on(token, State.DECIMAL, DECIMAL_RECOVER, State.INITIAL);
+        on(token, State.DECIMAL, DIGITS, APPEND, State.DECIMAL);
+        on(token, State.DECIMAL, ";", END_DECIMAL, State.INITIAL);
+
+        on(token, State.SGML, INVALID_RECOVER, State.RECOVER);
+        on(token, State.SGML, nameFirstChars, APPEND, State.DTD1);
+        on(token, State.SGML, "-", NONE, State.COMMENT1);
+        on(token, State.SGML, "[", NONE, State.CDATA1);
+
+        on(token, State.COMMENT1, UNKNOWN_EDGE_RECOVER, State.RECOVER);
+        on(token, State.COMMENT1, "-", NONE, State.COMMENT2);
+        on(token, State.COMMENT2, APPEND, State.COMMENT2);
+        on(token, State.COMMENT2, "-", APPEND, State.COMMENT3);
+        on(token, State.COMMENT3, APPEND, State.COMMENT2);
+        on(token, State.COMMENT3, "-", APPEND, State.COMMENT4);
+        on(token, State.COMMENT4, APPEND, State.COMMENT2);
+        on(token, State.COMMENT4, ">", END_COMMENT, State.INITIAL);
+
+        on(token, State.ENDTAG1, INVALID_RECOVER, State.RECOVER);
+        on(token, State.ENDTAG1, nameChars, APPEND, State.ENDTAG2);
+        on(token, State.ENDTAG1, ">", END_TAG, State.INITIAL);
+        on(token, State.ENDTAG2, INVALID_RECOVER, State.RECOVER);
+        on(token, State.ENDTAG2, nameChars, APPEND, State.ENDTAG2);
+        on(token, State.ENDTAG2, ">", END_END_TAG, State.INITIAL);
+
+        on(token, State.CDATA1, INVALID_RECOVER, State.RECOVER);
+        on(token, State.CDATA1, nameChars, APPEND, State.CDATA2);
+        on(token, State.CDATA2, INVALID_RECOVER, State.RECOVER);
+        on(token, State.CDATA2, nameChars, APPEND, State.CDATA2);
+        on(token, State.CDATA2, "[", CDATA_CHECK, State.CDATA3);
+        on(token, State.CDATA3, APPEND, State.CDATA3);
+        on(token, State.CDATA3, "]", NONE, State.CDATA4);
+        on(token, State.CDATA4, NONE, State.CDATA3);
+        on(token, State.CDATA4, "]", NONE, State.CDATA5);
+        on(token, State.CDATA5, NONE, State.CDATA3);
+        on(token, State.CDATA5, ">", END_CDATA, State.INITIAL);
+
+        on(token, State.DTD1, APPEND_INVALID_RECOVER, State.RECOVER);
+        on(token, State.DTD1, nameChars, APPEND, State.DTD1);
+        on(token, State.DTD1, WHITE_SPACE, DTD_NAME, State.DTD2);
+        on(token, State.DTD2, APPEND, State.DTD3);
+        on(token, State.DTD2, WHITE_SPACE, NONE, State.DTD2);
+        on(token, State.DTD3, APPEND, State.DTD3);
+        on(token, State.DTD3, ">", END_DTD, State.INITIAL);
+
+        on(token, State.PITARGET, APPEND, State.PITARGET);
+        on(token, State.PITARGET, WHITE_SPACE, PI_NAME, State.PIDATA);
+        on(token, State.PIDATA, APPEND, State.PIDATA);
+        on(token, State.PIDATA, "?", NONE, State.ENDPI);
+        on(token, State.ENDPI, UNKNOWN_EDGE_PUSHBACK_RECOVER, State.RECOVER);
+        on(token, State.ENDPI, ">", END_PI, State.INITIAL);
+
+        on(token, State.SCRIPT1, APPEND, State.SCRIPT1);
+        on(token, State.SCRIPT1, "<", NONE, State.SCRIPT2);
+        State[] script = { State.SCRIPT2, State.SCRIPT3, State.SCRIPT4, State.SCRIPT5,
+                State.SCRIPT6, State.SCRIPT7, State.SCRIPT8, State.SCRIPT9 };
+        for (int i = 0; i < script.length; i++) {
+            on(token, script[i], SCRIPT_MISMATCH, State.SCRIPT1);
+            if (i + 1 < script.length) {
+                on(token, script[i], SCRIPT_END_TAG.substring(i + 1, i + 2), NONE, script[i + 1]);
+            } else {
+                on(token, script[i], ">", END_SCRIPT, State.INITIAL);
+            }
+        }
+
+        // With the text tokens option, all the character data up to the next markup or entity reference is one token.
+        int[][] text = new int[STATES.length][];
+        for (int s = 0; s < STATES.length; s++) {
+            text[s] = token[s].clone();
+        }
+        on(text, State.INITIAL, APPEND, State.INITIAL);
+        on(text, State.INITIAL, "<", WORD_BREAK, State.OPENTAG);
+        on(text, State.INITIAL, "&", WORD_BREAK, State.ENTITY);
+
+        // Rules for the attributes within a start-tag.
+        on(tag, State.RECOVER, NONE, State.RECOVER);
+        on(tag, State.RECOVER, ">", RETURN_TAG, State.RECOVER);
+
+        on(tag, State.TAG, ATTRIBUTE_APPEND_INVALID, State.RECOVER);
+        on(tag, State.TAG, nameChars, ATTRIBUTE_APPEND, State.NAME1);
+        on(tag, State.TAG, ">", RETURN_TAG, State.TAG);
+        on(tag, State.TAG, "/", NONE, State.EMPTY_ELEMENT2);
+        on(tag, State.TAG, WHITE_SPACE, NONE, State.TAG);
+
+        on(tag, State.EMPTY_ELEMENT2, UNKNOWN_EDGE_PUSHBACK_RECOVER, State.RECOVER);
+        on(tag, State.EMPTY_ELEMENT2, ">", RETURN_EMPTY, State.EMPTY_ELEMENT2);
+        on(tag, State.EMPTY_ELEMENT2, WHITE_SPACE, NONE, State.EMPTY_ELEMENT2);
+
+        on(tag, State.NAME1, ATTRIBUTE_APPEND_INVALID, State.RECOVER);
+        on(tag, State.NAME1, nameChars, ATTRIBUTE_APPEND, State.NAME1);
+        on(tag, State.NAME1, ">", ADD_NAME_RETURN, State.NAME1);
+        on(tag, State.NAME1, "/", NONE, State.EMPTY_ELEMENT2);
+        on(tag, State.NAME1, WHITE_SPACE, NONE, State.NAME2);
+        on(tag, State.NAME1, "=", NONE, State.VALUE1);
+
+        on(tag, State.NAME2, ADD_NAME_INVALID, State.RECOVER);
+        on(tag, State.NAME2, nameChars, ADD_NAME_START, State.NAME1);
+        on(tag, State.NAME2, ">", ADD_NAME_RETURN, State.NAME2);
+        on(tag, State.NAME2, "/", ADD_NAME, State.EMPTY_ELEMENT2);
+        on(tag, State.NAME2, WHITE_SPACE, NONE, State.NAME2);
+        on(tag, State.NAME2, "=", NONE, State.VALUE1);
+
+        on(tag, State.VALUE1, VALUE_APPEND_INVALID, State.RECOVER);
+        on(tag, State.VALUE1, nameChars, VALUE_APPEND, State.LABEL);
+        on(tag, State.VALUE1, WHITE_SPACE, NONE, State.VALUE1);
+        on(tag, State.VALUE1, "\"", NONE, State.QUOTED);
+        on(tag, State.VALUE1, "'", NONE, State.COMMA);
+
+        on(tag, State.VALUE2, PUSHBACK, State.TAG);
+        on(tag, State.VALUE2, ">", RETURN_TAG, State.VALUE2);
+        on(tag, State.VALUE2, "/", NONE, State.EMPTY_ELEMENT2);
+        on(tag, State.VALUE2, WHITE_SPACE, NONE, State.TAG);
+
+        on(tag, State.LABEL, VALUE_APPEND, State.LABEL);
+        on(tag, State.LABEL, ">", ADD_VALUE_RETURN, State.LABEL);
+        on(tag, State.LABEL, WHITE_SPACE, ADD_VALUE, State.TAG);
+
+        on(tag, State.QUOTED, VALUE_APPEND, State.QUOTED);
+        on(tag, State.QUOTED, "\"", ADD_VALUE, State.VALUE2);
+
+        on(tag, State.COMMA, VALUE_APPEND, State.COMMA);
+        on(tag, State.COMMA, "'", ADD_VALUE, State.VALUE2);
+
+        // Characters that have the same transitions in every state share a character class.
+        Map<String, Integer> classes = new HashMap<String, Integer>();
+        int[] representatives = new int[257];
+        for (int c = 0; c <= 256; c++) {
+            String key = key(c, token, text, tag);
+            Integer charClass = classes.get(key);
+            if (charClass == null) {
+                charClass = classes.size();
+                classes.put(key, charClass);
+                representatives[charClass] = c;
+            }
+            if (c < 256) CHAR_CLASSES[c] = (byte) (int) charClass;
+        }
+        UNICODE_CLASS = classes.get(key(256, token, text, tag));
+        CLASS_COUNT = classes.size();
+
+        TOKEN_TRANSITIONS = new int[STATES.length * CLASS_COUNT];
+        TEXT_TRANSITIONS = new int[STATES.length * CLASS_COUNT];
+        TAG_TRANSITIONS = new int[STATES.length * CLASS_COUNT];
+        for (int s = 0; s < STATES.length; s++) {
+            for (int charClass = 0; charClass < CLASS_COUNT; charClass++) {
+                TOKEN_TRANSITIONS[s * CLASS_COUNT + charClass] = token[s][representatives[charClass]];
+                TEXT_TRANSITIONS[s * CLASS_COUNT + charClass] = text[s][representatives[charClass]];
+                TAG_TRANSITIONS[s * CLASS_COUNT + charClass] = tag[s][representatives[charClass]];
+            }
+        }
+        log.debug("Compiled {} states and {} character classes", STATES.length, CLASS_COUNT);
+    }
+
+    /**
+     * This makes a key for the transitions of a character in every state.
+     * @param c The character, or 256 for the characters from 256 up.
+     * @param tables Rules for each state and character, for each transition table.
+     * @return Key that's equal for characters with the same transitions.
+     */
+    private static String key(int c, int[][]... tables) {
+        int[] column = new int[STATES.length * tables.length];
+        for (int t = 0; t < tables.length; t++) {
+            for (int s = 0; s < STATES.length; s++) {
+                column[t * STATES.length + s] = tables[t][s][c];
+            }
+        }
+        return Arrays.toString(column);
+    }
+
+    /**
+     * This sets the default rule for a state, for every character.
+     * @param rules Rules for each state and character, with characters from 256 up at index 256.
+     * @param state The state.
+     * @param action Action to take.
+     * @param next Next state.
+     */
+    private static void on(int[][] rules, State state, int action, State next) {
+        Arrays.fill(rules[state.ordinal()], (action << 8) | next.ordinal());
+    }
+
+    /**
+     * This sets the rule for a state, for some characters.
+     * @param rules Rules for each state and character, with characters from 256 up at index 256.
+     * @param state The state.
+     * @param chars The characters, all below 256.
+     * @param action Action to take.
+     * @param next Next state.
+     */
+    private static void on(int[][] rules, State state, String chars, int action, State next) {
+        for (int i = 0; i < chars.length(); i++) {
+            rules[state.ordinal()][chars.charAt(i)] = (action << 8) | next.ordinal();
+        }
+    }
+
+    /**
+     * This lists the characters below 256 allowed in names.
+     * @param first True for the characters allowed as the first character of a name.
+     * @return The characters.
+     */
+    private static String getChars(boolean first) {
+        StringBuilder chars = new StringBuilder();
+        for (char c = 0; c < 256; c++) {
+            if (first ? isNameFirstChar(c) : isNameChar(c)) chars.append(c);
+        }
+        return chars.toString();
+    }
+
+    /**
+     * Constructor for TableTagParser.
+     * @param stream Character stream reader.
+     */
+    public TableTagParser(ParseReader stream) {
+        super(stream);
+    }
+
+    /**
+     * This method sets the parser state, when it's different from the last state set.
+     * @param state Index of the state.
+     */
+    private void moveTo(int state) {
+        if (getState() != STATES[state]) setState(STATES[state]);
+    }
+
+    /**
+     * This method reads the next character, setting the parser state first if there's no more input yet,
+     * so that parsing can resume from the same state when more is fed.
+     * @param state Index of the current state.
+     * @return Next character from the input stream.
+     * @throws IOException Occurs if failed to read from input.
+     */
+    private char read(int state) throws IOException {
+        try {
+            return stream.read();
+        } catch (InputUnderflowException ex) {
+            moveTo(state);
+            throw ex;
+        }
+    }
+
+    /**
+     * Parses the next token from the input stream, continuing from the current state.
+     * @return Next token from the input stream.
+     * @throws IOException Occurs if failed to read from input.
+     * @throws MaxErrorsException Maximum number of errors reached.
+     */
+    ParseToken readToken() throws IOException, MaxErrorsException {
+        int[] transitions = isTextTokens() ? TEXT_TRANSITIONS : TOKEN_TRANSITIONS;
+        boolean[][] runs = isTextTokens() ? TEXT_RUNS : RUNS;
+        int state = getState().ordinal();
+        char nextChar;
+        while ((nextChar = read(state)) != ParseReader.EOF) {
+            if (trace != null) trace.record(STATES[state], nextChar, stream.getCharCount());
+            int transition = transitions[state * CLASS_COUNT
+                    + (nextChar < 256 ? CHAR_CLASSES[nextChar] : UNICODE_CLASS)];
+            int next = transition & 0xFF;
+            switch (transition >>> 8) {
+                case NONE:
+                    break;
+
+                case APPEND:
+                    buffer.append(nextChar);
+                    if (trace == null && runs[next] != null) buffer.appendRead(stream.readRun(runs[next]));
+                    break;
+
+                case PUSHBACK:
+                    stream.pushback(nextChar);
+                    break;
+
+                case PUSHBACK_WORD_BREAK:
+                case WORD_BREAK:
+                    if (transition >>> 8 == PUSHBACK_WORD_BREAK) stream.pushback(nextChar);
+                    if (buffer.length() > 0) {
+                        moveTo(next);
+                        return getWordToken();
+                    }
+                    break;
+
+                case NEWLINE:
+                    moveTo(next);
+                    if (buffer.length() == 0) return NewlineToken.INSTANCE;
+                    stream.pushback(nextChar);
+                    return new WordToken(buffer.getText());
+
+                case PUNCTUATION:
+                    moveTo(next);
+                    if (buffer.length() == 0) return PunctuationToken.valueOf(nextChar);
+                    stream.pushback(nextChar);
+                    return new WordToken(buffer.getText());
+
+                case END_NUMBER:
+                    stream.pushback(nextChar);
+                    moveTo(next);
+                    return getNumberToken();
+
+                case END_SPACES:
+                    stream.pushback(nextChar);
+                    moveTo(next);
+                    return SpacesToken.valueOf(buffer.getText());
+
+                case INVALID_RECOVER:
+                    moveTo(state);
+                    report(ParseDiagnostic.Kind.INVALID_CHAR, nextChar);
+                    stream.pushback(nextChar);
+                    break;
+
+                case UNKNOWN_EDGE_RECOVER:
+                    moveTo(state);
+                    report(ParseDiagnostic.Kind.UNKNOWN_EDGE, nextChar);
+                    break;
+
+                case UNKNOWN_EDGE_PUSHBACK_RECOVER:
+                    moveTo(state);
+                    report(ParseDiagnostic.Kind.UNKNOWN_EDGE, nextChar);
+                    stream.pushback(nextChar);
+                    break;
+
+                case END_TAG: {
+                    Tag tag = new Tag(buffer, isCaseSensitive());
+                    moveTo((isScript(tag) ? State.SCRIPT1 : State.INITIAL).ordinal());
+                    return new TagToken(tag);
+                }
+
+                case END_END_TAG:
+                    moveTo(next);
+                    return new TagToken(new Tag(buffer, isCaseSensitive()));
+
+                case START_TAG:
+                    moveTo(state);
+                    startTag(buffer);
+                    return getTagToken();
+
+                case AMPERSAND_RECOVER:
+                    moveTo(state);
+                    report(ParseDiagnostic.Kind.AMPERSAND_NOT_ENTITY, nextChar);
+                    stream.pushback(nextChar);
+                    stream.pushback("&amp;");
+                    break;
+
+                case END_REF:
+                    moveTo(next);
+                    return new EntityReferenceToken(buffer.toString());
+
+                case REF_RECOVER: {
+                    String str = buffer.toString();
+                    moveTo(state);
+                    if (isKnownEntity(str)) {
+                        report(ParseDiagnostic.Kind.ENTITY_NOT_ENDED, nextChar);
+                        stream.pushback(nextChar);
+                        moveTo(next);
+                        return new EntityReferenceToken(str);
+                    }
+                    report(ParseDiagnostic.Kind.TEXT_NOT_ENTITY, nextChar);
+                    buffer.append(nextChar);
+                    stream.pushback(buffer);
+                    buffer.clear();
+                    break;
+                }
+
+                case END_HEX:
+                    moveTo(next);
+                    return new CharacterEntityToken(buffer.toString());
+
+                case HEX_RECOVER: {
+                    String str = buffer.toString();
+                    moveTo(state);
+                    report(ParseDiagnostic.Kind.CHARACTER_ENTITY_NOT_ENDED, nextChar, str);
+                    stream.pushback(nextChar);
+                    moveTo(next);
+                    return new CharacterEntityToken(str);
+                }
+
+                case END_DECIMAL:
+                    moveTo(next);
+                    return new CharacterEntityToken(new Integer(buffer.toString()));
+
+                case DECIMAL_RECOVER:
+                    moveTo(state);
+                    report(ParseDiagnostic.Kind.CHARACTER_ENTITY_NOT_ENDED, nextChar);
+                    stream.pushback(nextChar);
+                    moveTo(next);
+                    return new CharacterEntityToken(new Integer(buffer.toString()));
+
+                case END_COMMENT:
+                    moveTo(next);
+                    return new CommentToken(buffer.subSequence(0, buffer.length() - 2));
+
+                case CDATA_CHECK:
+                    if (buffer.toString().toUpperCase().equals("CData")) {
+                        buffer.clear();
+                    } else {
+                        moveTo(state);
+                        report(ParseDiagnostic.Kind.CDATA_EXPECTED, nextChar);
+                        stream.pushback(nextChar);
+                        next = State.RECOVER.ordinal();
+                    }
+                    break;
+
+                case END_CDATA:
+                    moveTo(next);
+                    return new CDataToken(buffer.getText());
+
+                case APPEND_INVALID_RECOVER:
+                    buffer.append(nextChar);
+                    moveTo(state);
+                    report(ParseDiagnostic.Kind.INVALID_CHAR, nextChar);
+                    stream.pushback(buffer);
+                    buffer.clear();
+                    break;
+
+                case DTD_NAME: {
+                    name = buffer.toString();
+                    buffer.clear();
+                    String upper = name.toUpperCase();
+                    if (!upper.equals("DOCTYPE") && !upper.equals("ELEMENT") && !upper.equals("ATTLIST") &&
+                            !upper.equals("ENTITY") && !upper.equals("NOTATION")) {
+                        moveTo(state);
+                        report(ParseDiagnostic.Kind.UNRECOGNISED_DTD, nextChar, name);
+                        stream.pushback(buffer);
+                        buffer.clear();
+                        next = State.RECOVER.ordinal();
+                    }
+                    break;
+                }
+
+                case END_DTD:
+                    moveTo(next);
+                    return new DoctypeToken(name, buffer.toString());
+
+                case PI_NAME:
+                    name = buffer.toString();
+                    buffer.clear();
+                    break;
+
+                case END_PI:
+                    moveTo(next);
+                    return new ProcessingInstructionToken(name, buffer.toString());
+
+                case SCRIPT_MISMATCH: {
+                    int matched = state - State.SCRIPT2.ordinal() + 1;
+                    if (matched == 1) {
+                        buffer.append('<');
+                    } else {
+                        buffer.append(SCRIPT_END_TAG.substring(0, matched));
+                    }
+                    buffer.append(nextChar);
+                    break;
+                }
+
+                case END_SCRIPT:
+                    stream.pushback("</script>");
+                    moveTo(next);
+                    return new ScriptToken(buffer.getText());
+            }
+            state = next;
+        }
+        moveTo(state);
+        return getLastToken();
+    }
+
+    /**
+     * This method parses the attributes of the current start-tag, continuing from the current state.
+     * @return Tag instance.
+     * @throws IOException        Occurs if failed to read from input.
+     * @throws MaxErrorsException Maximum number of errors reached.
+     */
+    Tag parseAttributes() throws IOException, MaxErrorsException {
+        int state = getState().ordinal();
+        char nextChar;
+        while ((nextChar = read(state)) > 0 && nextChar != ParseReader.EOF) {
+            if (trace != null) trace.record(STATES[state], nextChar, stream.getCharCount());
+            int transition = TAG_TRANSITIONS[state * CLASS_COUNT
+                    + (nextChar < 256 ? CHAR_CLASSES[nextChar] : UNICODE_CLASS)];
+            int next = transition & 0xFF;
+            switch (transition >>> 8) {
+                case NONE:
+                    break;
+
+                case PUSHBACK:
+                    stream.pushback(nextChar);
+                    break;
+
+                case UNKNOWN_EDGE_PUSHBACK_RECOVER:
+                    moveTo(state);
+                    report(ParseDiagnostic.Kind.UNKNOWN_EDGE, nextChar);
+                    stream.pushback(nextChar);
+                    break;
+
+                case RETURN_TAG:
+                    moveTo(state);
+                    return openTag;
+
+                case RETURN_EMPTY:
+                    moveTo(state);
+                    return new EmptyElement(openTag);
+
+                case ATTRIBUTE_APPEND:
+                    attribute.append(nextChar);
+                    if (trace == null && RUNS[next] != null) attribute.appendRead(stream.readRun(RUNS[next]));
+                    break;
+
+                case ATTRIBUTE_APPEND_INVALID:
+                    attribute.append(nextChar);
+                    moveTo(state);
+                    report(ParseDiagnostic.Kind.INVALID_CHAR, nextChar);
+                    stream.pushback(attribute);
+                    attribute.clear();
+                    break;
+
+                case ADD_NAME:
+                    openTag.addAttribute(attribute);
+                    break;
+
+                case ADD_NAME_RETURN:
+                    openTag.addAttribute(attribute);
+                    moveTo(state);
+                    return openTag;
+
+                case ADD_NAME_START:
+                    openTag.addAttribute(attribute);
+                    attribute.clear();
+                    attribute.append(nextChar);
+                    break;
+
+                case ADD_NAME_INVALID:
+                    openTag.addAttribute(attribute);
+                    moveTo(state);
+                    report(ParseDiagnostic.Kind.INVALID_CHAR, nextChar);
+                    stream.pushback(nextChar);
+                    break;
+
+                case VALUE_APPEND:
+                    value.append(nextChar);
+                    if (trace == null && RUNS[next] != null) value.appendRead(stream.readRun(RUNS[next]));
+                    break;
+
+                case VALUE_APPEND_INVALID:
+                    value.append(nextChar);
+                    moveTo(state);
+                    report(ParseDiagnostic.Kind.INVALID_CHAR, nextChar);
+                    stream.pushback(value);
+                    value.clear();
+                    break;
+
+                case ADD_VALUE:
+                    openTag.addAttribute(attribute, value.getText());
+                    attribute.clear();
+                    value.clear();
+                    break;
+
+                case ADD_VALUE_RETURN:
+                    openTag.addAttribute(attribute, value.getText());
+                    moveTo(state);
+                    return openTag;
+            }
+            state = next;
+        }
+        moveTo(state);
+        report(ParseDiagnostic.Kind.UNEXPECTED_EOF, ParseReader.EOF);
+        return nextChar == ParseReader.EOF ? openTag : null;
+    }
+}
@@ -3,29 +3,84 @@ package stever.tagparser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Enumeration;
-import java.util.Hashtable;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /** This class is used to store instances of tags found within a parsed document. */
 public class Tag {
 
     private static final Logger log = LoggerFactory.getLogger(Tag.class);
 
+    /** Common attribute names, so that tags using them share the same String instances. */
+    private static final NameTable attributeNames = new NameTable(64);
+    static {
+        String[] names = { "id", "class", "style", "title", "lang", "dir", "name", "type", "value",
+                "href", "src", "alt", "rel", "target", "content", "charset", "media", "width", "height",
+                "border", "align", "valign", "bgcolor", "color", "size", "colspan", "rowspan", "scope",
+                "cellpadding", "cellspacing", "summary", "action", "method", "for", "checked", "selected",
+                "disabled", "readonly", "multiple", "maxlength", "placeholder", "tabindex", "role",
+                "onclick", "onload", "onchange", "onsubmit", "onmouseover", "onmouseout", "language",
+                "async", "defer", "xmlns" };
+        for (String name : names) attributeNames.add(name);
+    }
+
+    /** Shared attribute array for tags without any attributes. */
+    private static final Attribute[] NO_ATTRIBUTES = new Attribute[0];
+
     private String name;
     private boolean caseSensitive;
+    private boolean endTag;
+
+    /** Id of the element from HtmlElements, or HtmlElements.UNKNOWN. */
+    private int element;
 
-    protected Hashtable<String,Attribute> attributes = new Hashtable<String,Attribute>();
+    /** Attributes in the order they appear in the start-tag, followed by unused space. */
+    private Attribute[] attributes = NO_ATTRIBUTES;
+
+    /** Number of attributes held. */
+    private int attributeCount = 0;
 
     /**
      * This is a constructor for the class: Tag
-     * @param name Name of this tag. This is an end-tag if the name begins '/'.
+     * @param name Name of this tag, which may be the parser buffer. This is an end-tag if the name begins '/'.
      * @param caseSensitive True if tag and attribute names are case-sensitive.
      */
-    public Tag(String name, boolean caseSensitive) {
-        if (!caseSensitive) name = name.toLowerCase();
+    public Tag(CharSequence name, boolean caseSensitive) {
+        int start = name.length() > 0 && name.charAt(0) == '/' ? 1 : 0;
         this.caseSensitive = caseSensitive;
-        this.name = name;
+        this.endTag = start == 1;
+
+        // Known elements share the canonical name, unless the case of the name has to be kept.
+        element = HtmlElements.lookup(name, start);
+        if (caseSensitive) {
+            this.name = name.subSequence(start, name.length()).toString();
+            if (this.name.equals(HtmlElements.getName(element))) this.name = HtmlElements.getName(element);
+        } else if (element != HtmlElements.UNKNOWN) {
+            this.name = HtmlElements.getName(element);
+        } else {
+            // Some letters outside ASCII lower-case to ASCII, so the folded name is looked up again.
+            this.name = NameTable.toLowerCase(name, start);
+            element = HtmlElements.lookup(this.name, 0);
+            if (element != HtmlElements.UNKNOWN) this.name = HtmlElements.getName(element);
+        }
+    }
+
+    /**
+     * This constructor copies the name and attributes of another tag, for the extending classes
+     * EmptyElement and DummyElement.
+     * @param tag Tag to copy the name and attributes from.
+     * @param endTag True if this is an end-tag.
+     */
+    protected Tag(Tag tag, boolean endTag) {
+        this.name = tag.name;
+        this.element = tag.element;
+        this.caseSensitive = tag.caseSensitive;
+        this.endTag = endTag;
+        if (tag.attributeCount > 0) {
+            attributes = Arrays.copyOf(tag.attributes, tag.attributeCount);
+            attributeCount = tag.attributeCount;
+        }
     }
 
     /**
@@ -33,7 +88,7 @@ public class Tag {
      * @param name Attribute or tag name to validate.
      * @return True if the name is valid.
      */
-    private static boolean isValidName(String name) {
+    private static boolean isValidName(CharSequence name) {
 
         /*
         Valid tag and attribute names.
@@ -65,13 +120,21 @@ public class Tag {
     }
 
     /**
-     * This method returns the name of the tag.
+     * This method returns the name of the tag, without the '/' of an end-tag.
      * @return Name of the tag.
      */
     public String getName() {
         return name;
     }
 
+    /**
+     * This method returns the element id, for checking the element or its categories.
+     * @return Id from HtmlElements, or HtmlElements.UNKNOWN.
+     */
+    public int getElement() {
+        return element;
+    }
+
     /**
      * Getter for case-sensitivity option property.
      * @return True if case-sensitive option on.
@@ -85,35 +148,27 @@ public class Tag {
      * @return True if this is an end tag.
      */
     public boolean isEndTag() {
-        return name.charAt(0) == '/';
+        return endTag;
     }
 
     /**
      * This method adds an attribute to this tag.
      * If the attribute already exists then set this value for the attribute.
-     * @param name Name of the attribute.
+     * @param name Name of the attribute, which may be the parser buffer.
      * @param value Optional value associated the attribute.
      */
-    public void addAttribute(String name, String value) {
+    public void addAttribute(CharSequence name, CharSequence value) {
         if (!isValidName(name)) return;
-        if (!caseSensitive) name = name.toLowerCase();
-
-        // Make sure the attribute value doesn't contain invalid characters.
-        if (value != null) {
-            value = value.replaceAll("&amp;", "&");
-            value = value.replaceAll("&quot;", "\"");
-            value = value.replaceAll("&lt;", "<");
-            value = value.replaceAll("&gt;", ">");
-            value = value.replaceAll("&", "&amp;");
-            value = value.replaceAll("\"", "&quot;");
-            value = value.replaceAll("<", "&lt;");
-            value = value.replaceAll(">", "&gt;");
-        }
+        String key = attributeNames.intern(name, 0, caseSensitive);
 
-        Attribute attrib = attributes.get(name);
+        // The value is kept as it is, which may be a slice of the input.
+        // Any invalid characters are escaped by the Attribute when it is read or written.
+        Attribute attrib = findAttribute(key);
         if (attrib == null) {
-            attrib = new Attribute(name, value);
-            attributes.put(name, attrib);
+            if (attributeCount == attributes.length) {
+                attributes = Arrays.copyOf(attributes, Math.max(4, attributeCount * 2));
+            }
+            attributes[attributeCount++] = new Attribute(key, value);
         } else {
             attrib.setValue(value);
         }
@@ -121,9 +176,9 @@ public class Tag {
 
     /**
      * This method adds a attribute to this tag.
-     * @param name Name of the attribute.
+     * @param name Name of the attribute, which may be the parser buffer.
      */
-    public void addAttribute(String name) {
+    public void addAttribute(CharSequence name) {
         addAttribute(name, null);
     }
 
@@ -134,7 +189,20 @@ public class Tag {
      */
     public Attribute getAttribute(String name) {
         if (!caseSensitive) name = name.toLowerCase();
-        return attributes.get(name);
+        return findAttribute(name);
+    }
+
+    /**
+     * This method finds an attribute by the name it is stored with.
+     * Common names are shared instances, so most comparisons are by identity.
+     * @param name The attribute name, already lower-case unless case-sensitive.
+     * @return The attribute class instance, or null.
+     */
+    private Attribute findAttribute(String name) {
+        for (int i = 0; i < attributeCount; i++) {
+            if (attributes[i].getName().equals(name)) return attributes[i];
+        }
+        return null;
     }
 
     /**
@@ -144,21 +212,39 @@ public class Tag {
      */
     public String getAttributeValue(String name) {
         if (!caseSensitive) name = name.toLowerCase();
-        Attribute attrib = attributes.get(name);
+        Attribute attrib = findAttribute(name);
         if (attrib == null) return null;
         else return attrib.getValue();
     }
 
     /**
-     * This method returns a list of the attributes.
+     * This method returns a list of the attributes, in the order they appear in the start-tag.
      * @return List of attributes.
      */
     public ArrayList<Attribute> getAttributes() {
-        ArrayList<Attribute> result = new ArrayList<Attribute>();
-        for (Attribute attrib : attributes.values()) result.add(attrib);
+        ArrayList<Attribute> result = new ArrayList<Attribute>(attributeCount);
+        for (int i = 0; i < attributeCount; i++) result.add(attributes[i]);
         return result;
     }
 
+    /**
+     * This method returns the number of attributes, for reading them without a list being created.
+     * @return Number of attributes.
+     */
+    public int getAttributeCount() {
+        return attributeCount;
+    }
+
+    /**
+     * This method returns an attribute by its position in the start-tag.
+     * @param index Position of the attribute, from 0 to getAttributeCount() - 1.
+     * @return The attribute class instance.
+     */
+    public Attribute getAttribute(int index) {
+        if (index >= attributeCount) throw new IndexOutOfBoundsException("Attribute index: " + index);
+        return attributes[index];
+    }
+
     /**
      * This method writes the tag to a string, also supporting the toString()
      * methods of the extending classes EmptyElement and DummyElement.
@@ -167,75 +253,64 @@ public class Tag {
      * @return String representation.
      */
     protected String toString(boolean isEmptyElement, String comment) {
+        StringBuilder result = new StringBuilder();
+        try {
+            renderTo(result, isEmptyElement, comment);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex); // Not thrown by StringBuilder.
+        }
+        return result.toString();
+    }
+
+    /**
+     * This method writes the tag straight to the output, also supporting the renderTo()
+     * methods of the extending classes EmptyElement and DummyElement.
+     * @param out Output to append to.
+     * @param isEmptyElement True if this start-tag is to be closed.
+     * @param comment An optional comment to be enclosed in the element.
+     * @throws IOException Occurs if failed to write to the output.
+     */
+    protected void renderTo(Appendable out, boolean isEmptyElement, String comment) throws IOException {
 
         // Check arguments.
         if (!isEmptyElement && comment != null) {
             throw new IllegalArgumentException("Non-element can't have comment.");
         }
 
-        // Result string builder.
-        StringBuilder result = new StringBuilder();
-
         // Open start-tag.
-        result.append('<');
+        out.append('<');
 
         // Tag or element name.
-        result.append(name);
+        if (endTag) out.append('/');
+        out.append(name);
 
         // Attributes
-        if (attributes != null) {
-            for (Enumeration e = attributes.keys(); e.hasMoreElements();) {
-                String attributeName = (String) e.nextElement();
-                Attribute attrib = getAttribute(attributeName);
-                if (attrib != null) {
-                    result.append(' ');
-
-                    // Attribute name.
-                    result.append(attributeName);
-
-                    // Attribute value.
-                    if (attrib.getValue() == null) {
-                        result.append("=\"\"");
-                    } else {
-                        result.append('=');
-                        result.append('"');
-                        result.append(escapeAttribute(attrib.getValue()));
-                        result.append('"');
-                    }
-                }
-            }
+        for (int i = 0; i < attributeCount; i++) {
+            out.append(' ');
+            attributes[i].appendTo(out);
         }
 
         // Close start-tag or element.
         if (!isEmptyElement) {
-            result.append('>');
+            out.append('>');
         } else {
             if (comment == null) {
                 //TODO: Check if the empty element syntax is allowed.
-                result.append("/>");
+                out.append("/>");
             } else {
-                result.append("><!--").append(comment).append("-->");
-                result.append("</").append(name).append('>');
+                out.append("><!--").append(comment).append("-->");
+                out.append("</").append(name).append('>');
             }
         }
-
-        // Return result as string.
-        return result.toString();
     }
 
     /**
-     * This method is used to ensure that '&' are not misused in attribute values.
-     * @param value Attribute value to process.
-     * @return Attribute value with escaped '&' as may be required.
+     * This method writes the tag straight to the output, the same as toString().
+     * @param out Output to append to.
+     * @throws IOException Occurs if failed to write to the output.
      */
-    private String escapeAttribute(String value) {
-        if (value != null) {
-            value = value.replaceAll("&", "&amp;");
-            value = value.replaceAll("&amp;amp;", "&amp;");
-        } else {
-            value = "";
-        }
-        return value;
+    public void renderTo(Appendable out) throws IOException {
+        renderTo(out, false, null);
     }
 
     /**
@@ -4,6 +4,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.util.Hashtable;
 
 public class TagParser extends Parser {
@@ -11,24 +14,110 @@ public class TagParser extends Parser {
     private static final Logger log = LoggerFactory.getLogger(TagParser.class);
 
     /** Table of known entities and their text equivalents. */
-    private Hashtable<String,String> entities = null;
+    private static final Hashtable<String,String> entities;
+    static {
+        entities = new Hashtable<String,String>();
+        entities.put("amp", "&");
+        entities.put("nbsp", " ");
+        entities.put("quot", "\"");
+    }
+
+    /** Characters that carry on a word, a name, or an attribute value, and so can be read as a run. */
+    static final boolean[] TEXT_CHARS = getRunChars("<& \t\r\n0123456789'`!\"^*()-_+=|[]{}:;@~#,.?/\\");
+    static final boolean[] NAME_CHARS = new boolean[257];
+    static final boolean[] QUOTED_CHARS = getRunChars("\"\0");
+    static final boolean[] COMMA_CHARS = getRunChars("'\0");
+    static final boolean[] LABEL_CHARS = getRunChars("> \t\r\n\0");
+    static final boolean[] DATA_CHARS = getRunChars("<&");
+    static {
+        for (char c = 0; c < 256; c++) {
+            NAME_CHARS[c] = isNameChar(c);
+        }
+    }
 
     /** Flag for tag and attribute name case-sensitivity. */
     private boolean caseSensitive = false;
 
+    /** Flag for token text and attribute values to be returned as slices of the input buffer. */
+    private boolean sliceTokens = false;
+
+    /** Flag for each run of character data to be returned as one text token. */
+    private boolean textTokens = false;
+
+    /** Buffers for the text of the current token, and the attribute name and value within a tag. */
+    final TokenBuffer buffer = new TokenBuffer(stream, false);
+    final TokenBuffer attribute = new TokenBuffer(stream, false);
+    final TokenBuffer value = new TokenBuffer(stream, false);
+
+    /** Name of the declaration or processing instruction being parsed. */
+    String name = null;
+
+    /** Start-tag whose attributes are being parsed, or null when not within a tag. */
+    Tag openTag = null;
+
+    /** Set when parsing was suspended part way through a token, to wait for more content to be fed. */
+    private boolean suspended = false;
+
+    /**
+     * This makes a set of characters to be read as a run, for the ParseReader readRun method.
+     * @param breaks Characters that end the run.
+     * @return Flags for the characters below 256, then the flag for the characters from 256 up.
+     */
+    private static boolean[] getRunChars(String breaks) {
+        boolean[] set = new boolean[257];
+        for (char c = 0; c < 256; c++) {
+            set[c] = breaks.indexOf(c) < 0;
+        }
+        set[256] = true;
+        return set;
+    }
+
     /**
      * Constructor for TagParser.
      * @param stream Character stream reader.
      */
     public TagParser(ParseReader stream) {
         super(stream, State.INITIAL);
-        entities = new Hashtable<String,String>();
-        entities.put("amp", "&");
-        entities.put("nbsp", " ");
-        entities.put("quot", "\"");
         log.debug("Constructed TagParser");
     }
 
+    /**
+     * This method resets the parser to parse another input stream, keeping its options.
+     * @param stream Character stream reader.
+     */
+    public void reset(ParseReader stream) {
+        reset(stream, State.INITIAL);
+        name = null;
+        openTag = null;
+        suspended = false;
+    }
+
+    /**
+     * This method resets the parser, and its character stream reader, to parse content that is fed in chunks.
+     */
+    public void reset() {
+        stream.reset();
+        reset(stream);
+    }
+
+    /**
+     * This method resets the parser, and its character stream reader, to parse another input stream.
+     * @param reader The character input stream.
+     */
+    public void reset(Reader reader) {
+        stream.reset(reader);
+        reset(stream);
+    }
+
+    /**
+     * This method resets the parser, and its character stream reader, to parse a content string.
+     * @param text Content string.
+     */
+    public void reset(CharSequence text) {
+        stream.reset(text);
+        reset(stream);
+    }
+
     /**
      * Getter for case-sensitivity option property.
      * @return True if case-sensitive option on.
@@ -45,6 +134,44 @@ public class TagParser extends Parser {
         this.caseSensitive = caseSensitive;
     }
 
+    /**
+     * Getter for the slice tokens option property.
+     * @return True if token text is returned as slices of the input buffer.
+     */
+    public boolean isSliceTokens() {
+        return sliceTokens;
+    }
+
+    /**
+     * Setter for the slice tokens option property. With this option, the text of word, spaces,
+     * comment, script and CData tokens, and attribute values, are views of the ParseReader
+     * block buffer rather than strings. These are only valid until the next call to
+     * getNextToken(), so call toString() on any that need to be kept.
+     * @param sliceTokens Option to return token text as slices of the input buffer.
+     */
+    public void setSliceTokens(boolean sliceTokens) {
+        this.sliceTokens = sliceTokens;
+    }
+
+    /**
+     * Getter for the text tokens option property.
+     * @return True if each run of character data is returned as one text token.
+     */
+    public boolean isTextTokens() {
+        return textTokens;
+    }
+
+    /**
+     * Setter for the text tokens option property. With this option, the character data between
+     * markup and entity references is returned as one TextToken, instead of separate word, number,
+     * punctuation, spaces and newline tokens. The text is exactly as read, except for the linefeed
+     * characters that are always removed.
+     * @param textTokens Option to return each run of character data as one text token.
+     */
+    public void setTextTokens(boolean textTokens) {
+        this.textTokens = textTokens;
+    }
+
     /**
      * Gets the parser machine state.
      * @return Parser machine state.
@@ -53,22 +180,81 @@ public class TagParser extends Parser {
         return (State) super.getState();
     }
 
+    /**
+     * This method adds a chunk of content to be parsed, when the content is fed to the parser.
+     * @param chunk Characters from the buffer position up to its limit.
+     */
+    public void feed(CharBuffer chunk) {
+        stream.feed(chunk);
+    }
+
+    /**
+     * This method adds a chunk of UTF-8 encoded content to be parsed, when the content is fed to the parser.
+     * @param chunk Bytes from the buffer position up to its limit.
+     */
+    public void feed(ByteBuffer chunk) {
+        stream.feed(chunk);
+    }
+
+    /** This method signals that all of the content has been fed to the parser. */
+    public void endOfInput() {
+        stream.endOfInput();
+    }
+
+    /**
+     * Returns the next token that can be parsed from the content fed so far.
+     * Parsing is suspended when the end of the content is reached part way through a token,
+     * and resumes from the same point on the next call, after more content has been fed.
+     * @return Next token, or null if more content is needed.
+     * @throws IOException Occurs if failed to read from input.
+     * @throws MaxErrorsException Maximum number of errors reached.
+     */
+    public ParseToken pollToken() throws IOException, MaxErrorsException {
+        try {
+            return getNextToken();
+        } catch (InputUnderflowException ex) {
+            return null;
+        }
+    }
+
     /**
      * Returns the next token from the input stream.
      * @return Next token from the input stream.
      * @throws IOException Occurs if failed to read from input.
+     * @throws InputUnderflowException Content is being fed, and more is needed to complete the token.
      * @throws MaxErrorsException Maximum number of errors reached.
      */
     public ParseToken getNextToken() throws IOException, MaxErrorsException {
-        log.debug("getNextToken()");
+        if (suspended) {
+            suspended = false;
+        } else {
+
+            // Buffer containing text in current context.
+            if (sliceTokens) stream.mark();
+            buffer.reset(stream, sliceTokens);
+            name = null;
+        }
 
-        // Buffer containing text in current context.
-        StringBuilder buffer = new StringBuilder();
-        String name = null;
-        
+        try {
+            if (openTag != null) return getTagToken();
+            return readToken();
+        } catch (InputUnderflowException ex) {
+            suspended = true;
+            throw ex;
+        }
+    }
+
+    /**
+     * Parses the next token from the input stream, continuing from the current state.
+     * @return Next token from the input stream.
+     * @throws IOException Occurs if failed to read from input.
+     * @throws MaxErrorsException Maximum number of errors reached.
+     */
+    ParseToken readToken() throws IOException, MaxErrorsException {
         // Read nextToken character from the input stream.
         char nextChar; // Current character from the input stream.
         while ((nextChar = stream.read()) != ParseReader.EOF) {
+            if (trace != null) trace.record(getState(), nextChar, stream.getCharCount());
             switch (getState()) {
                 
                 case RECOVER: {
@@ -79,17 +265,22 @@ public class TagParser extends Parser {
                 }
 
                 case INITIAL: {
+                    if (textTokens && nextChar != '<' && nextChar != '&') {
+                        buffer.append(nextChar);
+                        if (trace == null) buffer.appendRead(stream.readRun(DATA_CHARS));
+                        break;
+                    }
                     switch (nextChar) {
                         case '<': {
                             setState(State.OPENTAG);
                             if (buffer.length() == 0) break; // No token yet.
-                            else return new WordToken(buffer.toString());
+                            else return getWordToken();
                         }
 
                         case '&': {
                             setState(State.ENTITY);
                             if (buffer.length() == 0) break; // No token yet.
-                            else return new WordToken(buffer.toString());
+                            else return getWordToken();
                         }
 
                         case ' ':
@@ -98,16 +289,16 @@ public class TagParser extends Parser {
                             stream.pushback(nextChar);
                             setState(State.SPACES);
                             if (buffer.length() == 0) break; // No token yet.
-                            else return new WordToken(buffer.toString());
+                            else return new WordToken(buffer.getText());
                         }
 
                         case '\n': {
                             if (buffer.length() == 0) {
-                                return new NewlineToken();
+                                return NewlineToken.INSTANCE;
                             } else {
                                 // Push newline back and return new token.
                                 stream.pushback(nextChar);
-                                return new WordToken(buffer.toString());
+                                return new WordToken(buffer.getText());
                             }
                         }
 
@@ -125,7 +316,7 @@ public class TagParser extends Parser {
                             stream.pushback(nextChar);
                             setState(State.NUMBER);
                             if (buffer.length() == 0) break;
-                            else return new WordToken(buffer.toString());
+                            else return new WordToken(buffer.getText());
                         }
 
                         case '\'':
@@ -159,14 +350,17 @@ public class TagParser extends Parser {
                             // the punctuation character and return text buffer.
                             if (buffer.length() > 0) {
                                 stream.pushback(nextChar);
-                                return new WordToken(buffer.toString());
+                                return new WordToken(buffer.getText());
                             } else {
-                                return new PunctuationToken(nextChar);
+                                return PunctuationToken.valueOf(nextChar);
                             }
                         }
 
                         default: {
                             buffer.append(nextChar);
+
+                            // Take the rest of the word from the block buffer in one go, unless tracing.
+                            if (trace == null) buffer.appendRead(stream.readRun(TEXT_CHARS));
                         }
                     }
                     break;
@@ -191,13 +385,7 @@ public class TagParser extends Parser {
                         default: {
                             stream.pushback(nextChar);
                             setState(State.INITIAL);
-                            ParseToken token;
-                            try {
-                                token = new NumberToken(new Long(buffer.toString()));
-                            } catch (NumberFormatException ex) {
-                                token = new WordToken(buffer.toString());
-                            }
-                            return token;
+                            return getNumberToken();
                         }
                     }
                     break;
@@ -215,7 +403,7 @@ public class TagParser extends Parser {
                         default: {
                             stream.pushback(nextChar);
                             setState(State.INITIAL);
-                            return new SpacesToken(buffer.toString());
+                            return SpacesToken.valueOf(buffer.getText());
                         }
                     }
                     break;
@@ -244,12 +432,9 @@ public class TagParser extends Parser {
                                 buffer.append(nextChar);
                                 setState(State.TAGNAME);
                             } else {
-                                log.error(getInvalidCharErrorMessage(nextChar, getState()));
+                                report(ParseDiagnostic.Kind.INVALID_CHAR, nextChar);
                                 stream.pushback(nextChar);
                                 setState(State.RECOVER);
-                                if (++numErrors >= maxErrors) {
-                                    throw new MaxErrorsException();
-                                }
                             }
                         }
                     }
@@ -259,9 +444,8 @@ public class TagParser extends Parser {
                 case TAGNAME: {
                     switch (nextChar) {
                         case '>': {
-                            String tagname = buffer.toString();
-                            Tag tag = new Tag(tagname, caseSensitive);
-                            setState(tagname.equalsIgnoreCase("script") ? State.SCRIPT1 : State.INITIAL);
+                            Tag tag = new Tag(buffer, caseSensitive);
+                            setState(isScript(tag) ? State.SCRIPT1 : State.INITIAL);
                             return new TagToken(tag);
                         }
 
@@ -269,10 +453,8 @@ public class TagParser extends Parser {
                         case '\t':
                         case '\n':
                         case '\r': {
-                            String tagname = buffer.toString();
-                            Tag tag = getTag(tagname);
-                            setState(tagname.equalsIgnoreCase("script") ? State.SCRIPT1 : State.INITIAL);
-                            return new TagToken(tag);
+                            startTag(buffer);
+                            return getTagToken();
                         }
 
                         case '/': {
@@ -283,13 +465,11 @@ public class TagParser extends Parser {
                         default: {
                             if (isNameChar(nextChar)) {
                                 buffer.append(nextChar);
+                                if (trace == null) buffer.appendRead(stream.readRun(NAME_CHARS));
                             } else {
-                                log.error(getInvalidCharErrorMessage(nextChar, getState()));
+                                report(ParseDiagnostic.Kind.INVALID_CHAR, nextChar);
                                 stream.pushback(nextChar);
                                 setState(State.RECOVER);
-                                if (++numErrors >= maxErrors) {
-                                    throw new MaxErrorsException();
-                                }
                             }
                         }
                     }
@@ -299,9 +479,8 @@ public class TagParser extends Parser {
                 case EMPTY_ELEMENT1: {
                     switch (nextChar) {
                         case '>': {
-                            String tagname = buffer.toString();
-                            Tag tag = new Tag(tagname, caseSensitive);
-                            setState(tagname.equalsIgnoreCase("script") ? State.SCRIPT1 : State.INITIAL);
+                            Tag tag = new Tag(buffer, caseSensitive);
+                            setState(isScript(tag) ? State.SCRIPT1 : State.INITIAL);
                             return new TagToken(tag);
                         }
 
@@ -315,11 +494,8 @@ public class TagParser extends Parser {
 
                         default: {
                             // Report unknown transition path as an error.
-                            log.error(getEdgeUnknownErrorMessage(nextChar, getState()));
+                            report(ParseDiagnostic.Kind.UNKNOWN_EDGE, nextChar);
                             setState(State.RECOVER);
-                            if (++numErrors >= maxErrors) {
-                                throw new MaxErrorsException();
-                            }
                         }
                     }
                     break;
@@ -340,15 +516,9 @@ public class TagParser extends Parser {
 
                                 // Common error to have '&' in hand-written HTML not "&nbsp;" as it should be!
                                 // In this case a warning will be logged and the HTML will be corrected.
-                                log.debug(getInvalidCharErrorMessage(nextChar, getState()));
-                                log.warn("Recovery assumed that '&' is not intended as an entity reference ({})", getCharacterPosition());
-                                log.debug("nextChar='{}'", nextChar);
-                                if (stream.getFilename() != null) {
-                                    log.debug("filename=\"{}\"", stream.getFilename());
-                                }
+                                report(ParseDiagnostic.Kind.AMPERSAND_NOT_ENTITY, nextChar);
                                 stream.pushback(nextChar);
                                 stream.pushback("&amp;");
-                                numRecoveries++;
                                 setState(State.INITIAL);
                             }
                         }
@@ -374,7 +544,6 @@ public class TagParser extends Parser {
                                 // A common error in hand-written HTML is to omit ';' at end of an entity reference.
                                 // HTML correction depends on whether or not the entity is recognised.
                                 // In any case the error will be handled and a warning message will be logged.
-                                log.debug(getInvalidCharErrorMessage(nextChar, getState()));
 
                                 // Check known entities to decide if the ';' was omitted
                                 String str = buffer.toString();
@@ -382,9 +551,8 @@ public class TagParser extends Parser {
 
                                     // This is a known entity, so assume that the ';' is missing.
                                     // Pushback last character and resume parsing from initial state.
-                                    log.warn("Recovery assumed that ; should have ended this entity reference ({})", getCharacterPosition());
+                                    report(ParseDiagnostic.Kind.ENTITY_NOT_ENDED, nextChar);
                                     stream.pushback(nextChar);
-                                    numRecoveries++;
                                     setState(State.INITIAL);
                                     return new EntityReferenceToken(str);
 
@@ -392,11 +560,10 @@ public class TagParser extends Parser {
                                     
                                     // This is not a known entity, so we don't assume that the ';' is missing.
                                     // Push the whole string from buffer back onto stream and resume from initial state.
-                                    log.warn("Recovery assumed that text was not intended as an entity reference ({})", getCharacterPosition());
+                                    report(ParseDiagnostic.Kind.TEXT_NOT_ENTITY, nextChar);
                                     buffer.append(nextChar);
-                                    stream.pushback(buffer.toString());
-                                    buffer = new StringBuilder();
-                                    numRecoveries++;
+                                    stream.pushback(buffer);
+                                    buffer.clear();
                                     setState(State.INITIAL);
                                 }
                             }
@@ -430,11 +597,8 @@ public class TagParser extends Parser {
 
                         default: {
                             // Unknown transition path from this state
-                            log.error(getEdgeUnknownErrorMessage(nextChar, getState()));
+                            report(ParseDiagnostic.Kind.UNKNOWN_EDGE, nextChar);
                             setState(State.RECOVER);
-                            if (++numErrors >= maxErrors) {
-                                throw new MaxErrorsException();
-                            }
                         }
                     }
                     break;
@@ -477,11 +641,9 @@ public class TagParser extends Parser {
 
                             // A common error in hand-written HTML is to omit ';' at end of an entity reference.
                             // Pushback last character and resume parsing from initial state.
-                            log.debug(getEdgeUnknownErrorMessage(nextChar, getState()));
                             String str = buffer.toString();
-                            log.warn("Recovery assumed that ; should have ended this character entity: {} ({})", str, getCharacterPosition());
+                            report(ParseDiagnostic.Kind.CHARACTER_ENTITY_NOT_ENDED, nextChar, str);
                             stream.pushback(nextChar);
-                            numRecoveries++;
                             setState(State.INITIAL);
                             return new CharacterEntityToken(str);
                         }
@@ -514,10 +676,8 @@ public class TagParser extends Parser {
 
                             // A common error in hand-written HTML is to omit ';' at end of an entity reference.
                             // Pushback last character and resume parsing from initial state.
-                            log.debug(getEdgeUnknownErrorMessage(nextChar, getState()));
-                            log.warn("Recovery assumed that ; should have ended this character entity ({})", getCharacterPosition());
+                            report(ParseDiagnostic.Kind.CHARACTER_ENTITY_NOT_ENDED, nextChar);
                             stream.pushback(nextChar);
-                            numRecoveries++;
                             setState(State.INITIAL);
                             return new CharacterEntityToken(new Integer(buffer.toString()));
                         }
@@ -542,12 +702,9 @@ public class TagParser extends Parser {
                                 buffer.append(nextChar);
                                 setState(State.DTD1);
                             } else {
-                                log.error(getInvalidCharErrorMessage(nextChar, getState()));
+                                report(ParseDiagnostic.Kind.INVALID_CHAR, nextChar);
                                 stream.pushback(nextChar);
                                 setState(State.RECOVER);
-                                if (++numErrors >= maxErrors) {
-                                    throw new MaxErrorsException();
-                                }
                             }
                         }
                     }
@@ -563,11 +720,8 @@ public class TagParser extends Parser {
 
                         default: {
                             // Unknown transition path from this state
-                            log.error(getEdgeUnknownErrorMessage(nextChar, getState()));
+                            report(ParseDiagnostic.Kind.UNKNOWN_EDGE, nextChar);
                             setState(State.RECOVER);
-                            if (++numErrors >= maxErrors) {
-                                throw new MaxErrorsException();
-                            }
                         }
                     }
                     break;
@@ -607,7 +761,7 @@ public class TagParser extends Parser {
                     switch (nextChar) {
                         case '>': {
                             setState(State.INITIAL);
-                            String data = buffer.toString().substring(0, buffer.length() - 2);
+                            CharSequence data = buffer.subSequence(0, buffer.length() - 2);
                             return new CommentToken(data);
                         }
 
@@ -622,9 +776,8 @@ public class TagParser extends Parser {
                 case ENDTAG1: {
                     switch (nextChar) {
                         case '>': {
-                            String tagname = buffer.toString();
-                            Tag tag = new Tag(tagname, caseSensitive);
-                            setState(tagname.equalsIgnoreCase("script") ? State.SCRIPT1 : State.INITIAL);
+                            Tag tag = new Tag(buffer, caseSensitive);
+                            setState(isScript(tag) ? State.SCRIPT1 : State.INITIAL);
                             return new TagToken(tag);
                         }
 
@@ -633,12 +786,9 @@ public class TagParser extends Parser {
                                 buffer.append(nextChar);
                                 setState(State.ENDTAG2);
                             } else {
-                                log.error(getInvalidCharErrorMessage(nextChar, getState()));
+                                report(ParseDiagnostic.Kind.INVALID_CHAR, nextChar);
                                 stream.pushback(nextChar);
                                 setState(State.RECOVER);
-                                if (++numErrors >= maxErrors) {
-                                    throw new MaxErrorsException();
-                                }
                             }
                         }
                     }
@@ -649,7 +799,7 @@ public class TagParser extends Parser {
                     switch (nextChar) {
                         case '>': {
                             setState(State.INITIAL);
-                            Tag tag = new Tag(buffer.toString(), caseSensitive);
+                            Tag tag = new Tag(buffer, caseSensitive);
                             return new TagToken(tag);
                         }
 
@@ -657,12 +807,9 @@ public class TagParser extends Parser {
                             if (isNameChar(nextChar)) {
                                 buffer.append(nextChar);
                             } else {
-                                log.error(getInvalidCharErrorMessage(nextChar, getState()));
+                                report(ParseDiagnostic.Kind.INVALID_CHAR, nextChar);
                                 stream.pushback(nextChar);
                                 setState(State.RECOVER);
-                                if (++numErrors >= maxErrors) {
-                                    throw new MaxErrorsException();
-                                }
                             }
                         }
                     }
@@ -674,12 +821,9 @@ public class TagParser extends Parser {
                         buffer.append(nextChar);
                         setState(State.CDATA2);
                     } else {
-                        log.error(getInvalidCharErrorMessage(nextChar, getState()));
+                        report(ParseDiagnostic.Kind.INVALID_CHAR, nextChar);
                         stream.pushback(nextChar);
                         setState(State.RECOVER);
-                        if (++numErrors >= maxErrors) {
-                            throw new MaxErrorsException();
-                        }
                     }
                     break;
                 }
@@ -688,15 +832,12 @@ public class TagParser extends Parser {
                     switch (nextChar) {
                         case '[': {
                             if (buffer.toString().toUpperCase().equals("CData")) {
-                                buffer = new StringBuilder();
+                                buffer.clear();
                                 setState(State.CDATA3);
                             } else {
-                                log.error("CData declaration expected");
+                                report(ParseDiagnostic.Kind.CDATA_EXPECTED, nextChar);
                                 stream.pushback(nextChar);
                                 setState(State.RECOVER);
-                                if (++numErrors >= maxErrors) {
-                                    throw new MaxErrorsException();
-                                }
                             }
                             break;
                         }
@@ -705,12 +846,9 @@ public class TagParser extends Parser {
                             if (isNameChar(nextChar)) {
                                 buffer.append(nextChar);
                             } else {
-                                log.error(getInvalidCharErrorMessage(nextChar, getState()));
+                                report(ParseDiagnostic.Kind.INVALID_CHAR, nextChar);
                                 stream.pushback(nextChar);
                                 setState(State.RECOVER);
-                                if (++numErrors >= maxErrors) {
-                                    throw new MaxErrorsException();
-                                }
                             }
                         }
                     }
@@ -749,7 +887,7 @@ public class TagParser extends Parser {
                     switch (nextChar) {
                         case '>': {
                             setState(State.INITIAL);
-                            return new CDataToken(buffer.toString());
+                            return new CDataToken(buffer.getText());
                         }
 
                         default: {
@@ -768,7 +906,7 @@ public class TagParser extends Parser {
 
                             // Checking that the DTD name string is recognised.
                             name = buffer.toString();
-                            buffer = new StringBuilder();
+                            buffer.clear();
                             if ((name.toUpperCase().equals("DOCTYPE")) ||
                                 (name.toUpperCase().equals("ELEMENT")) ||
                                 (name.toUpperCase().equals("ATTLIST")) ||
@@ -778,13 +916,10 @@ public class TagParser extends Parser {
                                 setState(State.DTD2);
 
                             } else {
-                                log.error("Unrecognised DTD part \"{}\"", name);
-                                stream.pushback(buffer.toString());
-                                buffer = new StringBuilder();
+                                report(ParseDiagnostic.Kind.UNRECOGNISED_DTD, nextChar, name);
+                                stream.pushback(buffer);
+                                buffer.clear();
                                 setState(State.RECOVER);
-                                if (++numErrors >= maxErrors) {
-                                    throw new MaxErrorsException();
-                                }
                             }
                             break;
                         }
@@ -792,13 +927,10 @@ public class TagParser extends Parser {
                         default: {
                             buffer.append(nextChar);
                             if (!isNameChar(nextChar)) {
-                                log.error(getInvalidCharErrorMessage(nextChar, getState()));
-                                stream.pushback(buffer.toString());
-                                buffer = new StringBuilder();
+                                report(ParseDiagnostic.Kind.INVALID_CHAR, nextChar);
+                                stream.pushback(buffer);
+                                buffer.clear();
                                 setState(State.RECOVER);
-                                if (++numErrors >= maxErrors) {
-                                    throw new MaxErrorsException();
-                                }
                             }
                         }
                     }
@@ -844,7 +976,7 @@ public class TagParser extends Parser {
                         case '\n':
                         case '\r': {
                             name = buffer.toString();
-                            buffer = new StringBuilder();
+                            buffer.clear();
                             setState(State.PIDATA);
                         }
                         break;
@@ -879,19 +1011,15 @@ public class TagParser extends Parser {
 
                         default: {
                             // Unknown transition path from this state.
-                            log.error(getEdgeUnknownErrorMessage(nextChar, getState()));
+                            report(ParseDiagnostic.Kind.UNKNOWN_EDGE, nextChar);
                             stream.pushback(nextChar);
                             setState(State.RECOVER);
-                            if (++numErrors >= maxErrors) {
-                                throw new MaxErrorsException();
-                            }
                         }
                     }
                     break;
                 }
 
                 case SCRIPT1: {
-                    log.debug("nextChar = {}", nextChar);
                     switch (nextChar) {
                         case '<': {
                             setState(State.SCRIPT2);
@@ -1022,7 +1150,7 @@ public class TagParser extends Parser {
                         case '>': {
                             stream.pushback("</script>");
                             setState(State.INITIAL);
-                            return new ScriptToken(buffer.toString());
+                            return new ScriptToken(buffer.getText());
                         }
 
                         default: {
@@ -1035,33 +1163,63 @@ public class TagParser extends Parser {
                 }
             }
         }
+        return getLastToken();
+    }
+
+    /**
+     * Returns the token for the text in the buffer, at the end of a word, or of the character data with the text tokens option.
+     * @return Word token, or text token.
+     */
+    ParseToken getWordToken() {
+        return textTokens ? new TextToken(buffer.getText()) : new WordToken(buffer.getText());
+    }
+
+    /**
+     * Returns the token for the digits in the buffer. The number is worked out from the digits as they
+     * are, without making a string, and if it's too big for a long then the digits are returned as a word.
+     * @return Number token, or word token.
+     */
+    ParseToken getNumberToken() {
+        long number = 0;
+        for (int i = 0; i < buffer.length(); i++) {
+            int digit = buffer.charAt(i) - '0';
+            if (number > (Long.MAX_VALUE - digit) / 10) return new WordToken(buffer.getText());
+            number = number * 10 + digit;
+        }
+        return new NumberToken(number);
+    }
+
+    /**
+     * Returns the token for any text left in the buffer at the end of the input stream.
+     * @return Last token, or the EOF token.
+     * @throws MaxErrorsException Maximum number of errors reached.
+     */
+    ParseToken getLastToken() throws MaxErrorsException {
 
         // Warning if unprocessed content in buffer, or unexpected end-of-file.
-        String leftovers = buffer.toString();
         switch (getState()) {
             case INITIAL: {
-                if (leftovers.length() == 0) break;
-                else return new WordToken(leftovers);
+                if (buffer.length() == 0) break;
+                else return getWordToken();
             }
 
             case NUMBER: {
-                if (leftovers.length() == 0) break;
-                else return new NumberToken(new Long(leftovers));
+                if (buffer.length() == 0) break;
+                else return getNumberToken();
             }
 
             case SPACES: {
-                if (leftovers.length() == 0) break;
-                else return new SpacesToken(leftovers);
+                if (buffer.length() == 0) break;
+                else return SpacesToken.valueOf(buffer.getText());
             }
 
             default: {
-                numWarnings++;
-                log.warn("Unexpected EOF");
+                report(ParseDiagnostic.Kind.UNEXPECTED_EOF, ParseReader.EOF);
             }
         }
 
         // EOF
-        return new EOFToken();
+        return EOFToken.INSTANCE;
     }
 
     /**
@@ -1075,16 +1233,65 @@ public class TagParser extends Parser {
      * @throws MaxErrorsException Maximum number of errors reached.
      */
     protected Tag getTag(String name) throws IOException, MaxErrorsException {
-        log.debug("Entering getTag()");
+        startTag(name);
+        return continueTag();
+    }
 
-        Tag tag = new Tag(name, caseSensitive);
-        StringBuilder attribute = new StringBuilder();
-        StringBuilder value = new StringBuilder();
+    /**
+     * This method starts parsing the attributes of a start-tag.
+     * @param name Name of the tag instance, which may be the parser buffer.
+     */
+    void startTag(CharSequence name) {
+        openTag = new Tag(name, caseSensitive);
+        attribute.reset(stream, sliceTokens);
+        value.reset(stream, sliceTokens);
 
         setState(State.TAG);
-        
+    }
+
+    /**
+     * This method checks if the content after a start-tag is a script.
+     * @param tag Start-tag.
+     * @return True if the tag starts a script element.
+     */
+    static boolean isScript(Tag tag) {
+        return tag.getElement() == HtmlElements.SCRIPT;
+    }
+
+    /**
+     * This method completes a tag token, for a start-tag with attributes.
+     * @return Tag token.
+     * @throws IOException        Occurs if failed to read from input.
+     * @throws MaxErrorsException Maximum number of errors reached.
+     */
+    TagToken getTagToken() throws IOException, MaxErrorsException {
+        boolean script = isScript(openTag);
+        Tag result = continueTag();
+        setState(script ? State.SCRIPT1 : State.INITIAL);
+        return new TagToken(result);
+    }
+
+    /**
+     * This method continues parsing the attributes of the current start-tag, until the end of the tag.
+     * @return Tag instance.
+     * @throws IOException        Occurs if failed to read from input.
+     * @throws MaxErrorsException Maximum number of errors reached.
+     */
+    private Tag continueTag() throws IOException, MaxErrorsException {
+        Tag result = parseAttributes();
+        openTag = null;
+        return result;
+    }
+
+    /**
+     * This method parses the attributes of the current start-tag, continuing from the current state.
+     * @return Tag instance.
+     * @throws IOException        Occurs if failed to read from input.
+     * @throws MaxErrorsException Maximum number of errors reached.
+     */
+    Tag parseAttributes() throws IOException, MaxErrorsException {
         char nextChar;
-        while ((nextChar = stream.read()) > 0) {
+        while ((nextChar = stream.read()) > 0 && nextChar != ParseReader.EOF) {
             /*
             if (getState() == State.RECOVER) {
                 log.info("getTag() method returning due to error recovery mode");
@@ -1092,18 +1299,19 @@ public class TagParser extends Parser {
             }
             */
 
+            if (trace != null) trace.record(getState(), nextChar, stream.getCharCount());
             switch (getState()) {
                 case RECOVER: {
                     switch (nextChar) {
                         case '>':
-                            return tag;
+                            return openTag;
                     }
                     break;
                 }
                 case TAG: {
                     switch (nextChar) {
                         case '>':
-                            return tag;
+                            return openTag;
 
                         case '/': {
                             setState(State.EMPTY_ELEMENT2);
@@ -1121,15 +1329,13 @@ public class TagParser extends Parser {
                         default: {
                             attribute.append(nextChar);
                             if (isNameChar(nextChar)) {
+                                if (trace == null) attribute.appendRead(stream.readRun(NAME_CHARS));
                                 setState(State.NAME1);
                             } else {
-                                log.error(getInvalidCharErrorMessage(nextChar, getState()));
-                                stream.pushback(attribute.toString());
-                                attribute = new StringBuilder();
+                                report(ParseDiagnostic.Kind.INVALID_CHAR, nextChar);
+                                stream.pushback(attribute);
+                                attribute.clear();
                                 setState(State.RECOVER);
-                                if (++numErrors >= maxErrors) {
-                                    throw new MaxErrorsException();
-                                }
                             }
                         }
                     }
@@ -1139,7 +1345,7 @@ public class TagParser extends Parser {
                 case EMPTY_ELEMENT2: {
                     switch (nextChar) {
                         case '>': {
-                            return new EmptyElement(tag);
+                            return new EmptyElement(openTag);
                         }
 
                         case ' ':
@@ -1152,12 +1358,9 @@ public class TagParser extends Parser {
 
                         default: {
                             // Unknown transition path from this state
-                            log.error(getEdgeUnknownErrorMessage(nextChar, getState()));
+                            report(ParseDiagnostic.Kind.UNKNOWN_EDGE, nextChar);
                             stream.pushback(nextChar);
                             setState(State.RECOVER);
-                            if (++numErrors >= maxErrors) {
-                                throw new MaxErrorsException();
-                            }
                         }
                     }
                     break;
@@ -1166,8 +1369,8 @@ public class TagParser extends Parser {
                 case NAME1: {
                     switch (nextChar) {
                         case '>': {
-                            tag.addAttribute(attribute.toString());
-                            return tag;
+                            openTag.addAttribute(attribute);
+                            return openTag;
                         }
 
                         case '/': {
@@ -1191,13 +1394,12 @@ public class TagParser extends Parser {
                         default: {
                             attribute.append(nextChar);
                             if (!isNameChar(nextChar)) {
-                                log.error(getInvalidCharErrorMessage(nextChar, getState()));
-                                stream.pushback(attribute.toString());
-                                attribute = new StringBuilder();
+                                report(ParseDiagnostic.Kind.INVALID_CHAR, nextChar);
+                                stream.pushback(attribute);
+                                attribute.clear();
                                 setState(State.RECOVER);
-                                if (++numErrors >= maxErrors) {
-                                    throw new MaxErrorsException();
-                                }
+                            } else if (trace == null) {
+                                attribute.appendRead(stream.readRun(NAME_CHARS));
                             }
                         }
                     }
@@ -1207,12 +1409,12 @@ public class TagParser extends Parser {
                 case NAME2: {
                     switch (nextChar) {
                         case '>': {
-                            tag.addAttribute(attribute.toString());
-                            return tag;
+                            openTag.addAttribute(attribute);
+                            return openTag;
                         }
 
                         case '/': {
-                            tag.addAttribute(attribute.toString());
+                            openTag.addAttribute(attribute);
                             setState(State.EMPTY_ELEMENT2);
                             break;
                         }
@@ -1231,19 +1433,16 @@ public class TagParser extends Parser {
                         }
 
                         default: {
-                            tag.addAttribute(attribute.toString());
+                            openTag.addAttribute(attribute);
                             if (isNameChar(nextChar)) {
-                                attribute = new StringBuilder();
+                                attribute.clear();
                                 attribute.append(nextChar); // New attribute.
                                 setState(State.NAME1);
                                 
                             } else {
-                                log.error(getInvalidCharErrorMessage(nextChar, getState()));
+                                report(ParseDiagnostic.Kind.INVALID_CHAR, nextChar);
                                 stream.pushback(nextChar);
                                 setState(State.RECOVER);
-                                if (++numErrors >= maxErrors) {
-                                    throw new MaxErrorsException();
-                                }
                             }
                         }
                     }
@@ -1275,13 +1474,10 @@ public class TagParser extends Parser {
                             if (isNameChar(nextChar)) {
                                 setState(State.LABEL);
                             } else {
-                                log.error(getInvalidCharErrorMessage(nextChar, getState()));
-                                stream.pushback(value.toString());
-                                value = new StringBuilder();
+                                report(ParseDiagnostic.Kind.INVALID_CHAR, nextChar);
+                                stream.pushback(value);
+                                value.clear();
                                 setState(State.RECOVER);
-                                if (++numErrors >= maxErrors) {
-                                    throw new MaxErrorsException();
-                                }
                             }
                         }
                     }
@@ -1291,7 +1487,7 @@ public class TagParser extends Parser {
                 case VALUE2: {
                     switch (nextChar) {
                         case '>': {
-                            return tag;
+                            return openTag;
                         }
 
                         case '/': {
@@ -1318,23 +1514,24 @@ public class TagParser extends Parser {
                 case LABEL: {
                     switch (nextChar) {
                         case '>': {
-                            tag.addAttribute(attribute.toString(), value.toString());
-                            return tag;
+                            openTag.addAttribute(attribute, value.getText());
+                            return openTag;
                         }
 
                         case ' ':
                         case '\t':
                         case '\n':
                         case '\r': {
-                            tag.addAttribute(attribute.toString(), value.toString());
-                            attribute = new StringBuilder();
-                            value = new StringBuilder();
+                            openTag.addAttribute(attribute, value.getText());
+                            attribute.clear();
+                            value.clear();
                             setState(State.TAG);
                             break;
                         }
 
                         default: {
                             value.append(nextChar);
+                            if (trace == null) value.appendRead(stream.readRun(LABEL_CHARS));
                         }
                     }
                     break;
@@ -1343,15 +1540,16 @@ public class TagParser extends Parser {
                 case QUOTED: {
                     switch (nextChar) {
                         case '"': {
-                            tag.addAttribute(attribute.toString(), value.toString());
-                            attribute = new StringBuilder();
-                            value = new StringBuilder();
+                            openTag.addAttribute(attribute, value.getText());
+                            attribute.clear();
+                            value.clear();
                             setState(State.VALUE2);
                             break;
                         }
 
                         default: {
                             value.append(nextChar);
+                            if (trace == null) value.appendRead(stream.readRun(QUOTED_CHARS));
                         }
                     }
                     break;
@@ -1360,15 +1558,16 @@ public class TagParser extends Parser {
                 case COMMA: {
                     switch (nextChar) {
                         case '\'': {
-                            tag.addAttribute(attribute.toString(), value.toString());
-                            attribute = new StringBuilder();
-                            value = new StringBuilder();
+                            openTag.addAttribute(attribute, value.getText());
+                            attribute.clear();
+                            value.clear();
                             setState(State.VALUE2);
                             break;
                         }
 
                         default: {
                             value.append(nextChar);
+                            if (trace == null) value.appendRead(stream.readRun(COMMA_CHARS));
                         }
                     }
                     break;
@@ -1376,9 +1575,9 @@ public class TagParser extends Parser {
             }
         }
 
-        numWarnings++;
-        log.warn("Unexpected EOF");
-        return null;
+        // The tag is kept as far as it was parsed at the end of the input, but not after a null character.
+        report(ParseDiagnostic.Kind.UNEXPECTED_EOF, ParseReader.EOF);
+        return nextChar == ParseReader.EOF ? openTag : null;
     }
 
     /**
@@ -1399,7 +1598,7 @@ public class TagParser extends Parser {
      * @param entity Name of entity.
      * @return True if the entity name is recognised.
      */
-    private boolean isKnownEntity(String entity) {
+    boolean isKnownEntity(String entity) {
         return decodeEntity(entity) != null;
     }
 
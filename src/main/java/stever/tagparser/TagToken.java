@@ -1,5 +1,7 @@
 package stever.tagparser;
 
+import java.io.IOException;
+
 public class TagToken extends ParseToken {
 
     private Tag tag;
@@ -25,4 +27,8 @@ public class TagToken extends ParseToken {
     public String render() {
         return tag.toString();
     }
+
+    public void renderTo(Appendable out) throws IOException {
+        tag.renderTo(out);
+    }
 }
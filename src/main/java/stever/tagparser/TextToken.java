@@ -0,0 +1,30 @@
+package stever.tagparser;
+
+import java.io.IOException;
+
+public class TextToken extends ParseToken {
+
+    private CharSequence text;
+
+    public TextToken(CharSequence text) {
+        this.text = text;
+    }
+
+    public CharSequence getText() {
+        return text;
+    }
+
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        result.append("Text: \"").append(text).append('"');
+        return result.toString();
+    }
+
+    public String render() {
+        return text.toString();
+    }
+
+    public void renderTo(Appendable out) throws IOException {
+        CharSpan.append(out, text, 0, text.length());
+    }
+}
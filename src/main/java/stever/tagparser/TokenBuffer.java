@@ -0,0 +1,143 @@
+package stever.tagparser;
+
+/**
+ * This class collects the text of a token as it is parsed. While the characters appended
+ * are the ones read, in order, from the ParseReader block buffer, only their offsets are
+ * kept, so that the text can be returned as a slice of the block buffer instead of a copy.
+ * The characters are copied into a string builder as soon as anything else is appended.
+ */
+class TokenBuffer implements CharSequence {
+
+    /** The stream that the characters are read from. */
+    private ParseReader stream;
+
+    /** Option to return the text as a slice of the block buffer. */
+    private boolean slicing;
+
+    /** Set while the characters are a range of the block buffer, rather than copied into the text. */
+    private boolean sliced;
+
+    /** Text of the token, when the characters are copied. Kept for reuse when the buffer is cleared. */
+    private final StringBuilder text = new StringBuilder();
+
+    /** Offset in the stream of the first character, while the characters are a range of the block buffer. */
+    private int start = 0;
+
+    /** Number of characters. */
+    private int length = 0;
+
+    /**
+     * Constructor for the TokenBuffer class.
+     * @param stream The stream that the characters are read from.
+     * @param slicing Option to return the text as a slice of the block buffer.
+     */
+    TokenBuffer(ParseReader stream, boolean slicing) {
+        reset(stream, slicing);
+    }
+
+    /**
+     * This method empties the buffer, to collect the text of a token from another stream or with another option.
+     * @param stream The stream that the characters are read from.
+     * @param slicing Option to return the text as a slice of the block buffer.
+     */
+    void reset(ParseReader stream, boolean slicing) {
+        this.stream = stream;
+        this.slicing = slicing;
+        clear();
+    }
+
+    /**
+     * This method appends a character, normally the character just read.
+     * @param c Character to append.
+     * @return This buffer.
+     */
+    TokenBuffer append(char c) {
+        if (sliced) {
+            int offset = stream.getReadOffset(c);
+            if (offset >= 0 && (length == 0 || offset == start + length)) {
+                if (length == 0) start = offset;
+                length++;
+                return this;
+            }
+            copy();
+        }
+        text.append(c);
+        length++;
+        return this;
+    }
+
+    /**
+     * This method appends the characters just read, which must have been read from the block buffer.
+     * @param count Number of characters, ending at the current character count of the stream.
+     * @return This buffer.
+     */
+    TokenBuffer appendRead(int count) {
+        if (count == 0) return this;
+        int end = stream.getCharCount();
+        int begin = end - count;
+        if (sliced) {
+            if (length == 0 || begin == start + length) {
+                if (length == 0) start = begin;
+                length += count;
+                return this;
+            }
+            copy();
+        }
+        stream.appendTo(text, begin, end);
+        length += count;
+        return this;
+    }
+
+    /**
+     * This method appends a string.
+     * @param str String to append.
+     * @return This buffer.
+     */
+    TokenBuffer append(String str) {
+        if (sliced) copy();
+        text.append(str);
+        length += str.length();
+        return this;
+    }
+
+    /** This method empties the buffer. */
+    void clear() {
+        sliced = slicing;
+        text.setLength(0);
+        length = 0;
+    }
+
+    /** This method copies the characters from the block buffer into a string builder. */
+    private void copy() {
+        sliced = false;
+        if (length > 0) stream.appendTo(text, start, start + length);
+    }
+
+    /**
+     * This method returns the text, as a slice of the block buffer if possible.
+     * @return Text of the token.
+     */
+    CharSequence getText() {
+        return subSequence(0, length);
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public char charAt(int index) {
+        return sliced ? stream.charAt(start + index) : text.charAt(index);
+    }
+
+    public CharSequence subSequence(int start, int end) {
+        if (sliced) {
+            if (start == end) return "";
+            return stream.slice(this.start + start, this.start + end);
+        }
+        return text.substring(start, end);
+    }
+
+    public String toString() {
+        return sliced ? subSequence(0, length).toString() : text.toString();
+    }
+}
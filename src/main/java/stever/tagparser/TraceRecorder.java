@@ -0,0 +1,78 @@
+package stever.tagparser;
+
+/**
+ * This class records the last few characters read by a parser, each with the parser state
+ * it was read in and the character count at the time, in a fixed-size ring buffer.
+ * Nothing is formatted until the trace is dumped, which the parser does when there's an error.
+ */
+public class TraceRecorder {
+
+    /** Parser state for each character recorded. */
+    private final Enum[] states;
+
+    /** Characters recorded. */
+    private final char[] chars;
+
+    /** Character count when each character was read. */
+    private final int[] offsets;
+
+    /** Index where the next character is recorded. */
+    private int next = 0;
+
+    /** Number of characters held, up to the capacity. */
+    private int size = 0;
+
+    /**
+     * Constructor for the TraceRecorder class.
+     * @param capacity Number of characters to keep.
+     */
+    public TraceRecorder(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Trace capacity must be positive.");
+        }
+        states = new Enum[capacity];
+        chars = new char[capacity];
+        offsets = new int[capacity];
+    }
+
+    /**
+     * This method records a character, overwriting the oldest one when the buffer is full.
+     * @param state Parser state the character was read in.
+     * @param c Character read.
+     * @param offset Character count when the character was read.
+     */
+    public void record(Enum state, char c, int offset) {
+        states[next] = state;
+        chars[next] = c;
+        offsets[next] = offset;
+        if (++next == chars.length) next = 0;
+        if (size < chars.length) size++;
+    }
+
+    /** @return Number of characters held, up to the capacity. */
+    public int size() {
+        return size;
+    }
+
+    /** This method discards the characters recorded. */
+    public void clear() {
+        next = 0;
+        size = 0;
+    }
+
+    /**
+     * This method formats the characters held, oldest first, one per line.
+     * @return Trace as a string.
+     */
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        for (int i = chars.length - size; i < chars.length; i++) {
+            int index = (next + i) % chars.length;
+            result.append('@').append(offsets[index]);
+            result.append(' ').append(states[index]);
+            result.append(' ').append(Parser.toNameString(chars[index]));
+            result.append('\n');
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,159 @@
+package stever.tagparser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * This class maps the character offsets of a ParseReader to byte offsets in its UTF-8 source,
+ * so that spans of text that pass through unchanged can be copied to UTF-8 output as the original
+ * bytes. Characters are mostly ASCII, one byte each, so an anchor is only recorded where that stops
+ * being true: after each character encoded in more than one byte, and where a carriage return was
+ * removed from the characters. Anchors before the block buffer are discarded as it moves on, so
+ * there are no more anchors than characters held.
+ */
+final class Utf8Offsets {
+
+    /** UTF-8 source, with the first byte at index 0. */
+    private final ByteBuffer source;
+
+    /** Character offset of each anchor, in increasing order. */
+    private int[] chars = new int[64];
+
+    /** Byte offset of the character at each anchor. */
+    private int[] bytes = new int[64];
+
+    /** Number of bytes skipped just before each anchor, for carriage returns that were removed. */
+    private int[] gaps = new int[64];
+
+    /** Number of anchors. */
+    private int count = 1;
+
+    /** Character offset from which the characters may not match the source, after malformed input. */
+    private int unmatchedFrom = Integer.MAX_VALUE;
+
+    /**
+     * Constructor for the Utf8Offsets class, starting with character 0 at byte 0.
+     * @param source UTF-8 source, with the first byte at index 0.
+     */
+    Utf8Offsets(ByteBuffer source) {
+        this.source = source;
+    }
+
+    /**
+     * @param offset Character offset.
+     * @return Index of the last anchor at or before the offset.
+     */
+    private int find(int offset) {
+        int index = Arrays.binarySearch(chars, 0, count, offset);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    /**
+     * @param offset Character offset, after the last anchor.
+     * @return Byte offset of the character, if all the characters since the last anchor are ASCII.
+     */
+    private int byteOffset(int offset) {
+        return bytes[count - 1] + offset - chars[count - 1];
+    }
+
+    /**
+     * This method adds an anchor, or moves the last one if it's at the same character.
+     * @param offset Character offset.
+     * @param byteOffset Byte offset of the character.
+     * @param gap Number of bytes skipped just before the character.
+     */
+    private void anchor(int offset, int byteOffset, int gap) {
+        if (chars[count - 1] != offset) {
+            if (count == chars.length) {
+                chars = Arrays.copyOf(chars, count * 2);
+                bytes = Arrays.copyOf(bytes, count * 2);
+                gaps = Arrays.copyOf(gaps, count * 2);
+            }
+            chars[count] = offset;
+            gaps[count] = 0;
+            count++;
+        }
+        bytes[count - 1] = byteOffset;
+        gaps[count - 1] += gap;
+    }
+
+    /**
+     * This method records a character outside ASCII. A supplementary character is recorded as
+     * four bytes for its high surrogate and none for its low surrogate.
+     * @param offset Character offset.
+     * @param c Character.
+     */
+    void addChar(int offset, char c) {
+        int length;
+        if (c < 0x800) {
+            length = 2;
+        } else if (Character.isHighSurrogate(c)) {
+            length = 4;
+        } else if (Character.isLowSurrogate(c)) {
+            length = 0;
+        } else {
+            length = 3;
+        }
+        anchor(offset + 1, byteOffset(offset) + length, 0);
+    }
+
+    /**
+     * This method records a carriage return that was removed before a character offset.
+     * @param offset Character offset of the character that followed the carriage return.
+     */
+    void addRemoved(int offset) {
+        anchor(offset, byteOffset(offset) + 1, 1);
+    }
+
+    /**
+     * This method records that the characters from an offset on may not match the source,
+     * where malformed input has been replaced.
+     * @param offset Character offset.
+     */
+    void setUnmatchedFrom(int offset) {
+        if (offset < unmatchedFrom) unmatchedFrom = offset;
+    }
+
+    /**
+     * This method discards the anchors that are no longer needed for characters from an offset on.
+     * @param offset Character offset of the first character that may still be copied.
+     */
+    void discardBefore(int offset) {
+        int first = find(offset);
+        if (first == 0) return;
+        count -= first;
+        System.arraycopy(chars, first, chars, 0, count);
+        System.arraycopy(bytes, first, bytes, 0, count);
+        System.arraycopy(gaps, first, gaps, 0, count);
+    }
+
+    /**
+     * This method copies the source bytes of a range of characters, leaving out any carriage returns
+     * that were removed from the characters.
+     * @param out UTF-8 output.
+     * @param start Character offset of the first character.
+     * @param end Character offset after the last character.
+     * @return False if nothing was written, as the characters may not match the source.
+     * @throws IOException Occurs if failed to write to the output.
+     */
+    boolean copyTo(Utf8Writer out, int start, int end) throws IOException {
+        if (end > unmatchedFrom || start < chars[0]) return false;
+        int index = find(start);
+        int from = bytes[index] + start - chars[index];
+        for (index++; index < count && chars[index] < end; index++) {
+            if (gaps[index] > 0) {
+                out.write(source, from, bytes[index] - gaps[index]);
+                from = bytes[index];
+            }
+        }
+        int to;
+        if (index < count && chars[index] == end) {
+            to = bytes[index] - gaps[index];
+        } else {
+            to = bytes[index - 1] + end - chars[index - 1];
+        }
+        out.write(source, from, to);
+        return true;
+    }
+}
@@ -0,0 +1,219 @@
+package stever.tagparser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+
+/**
+ * This class reads characters directly from UTF-8 encoded bytes.
+ * HTML markup is almost all ASCII, so ASCII bytes are simply widened to characters
+ * and only multi-byte sequences, in text, attribute values and comments, are decoded.
+ * Malformed sequences are replaced with U+FFFD, as with the standard UTF-8 decoder.
+ */
+class Utf8Reader extends Reader {
+
+    /** Character used in place of malformed input. */
+    private static final char REPLACEMENT = '\uFFFD';
+
+    /** Size of the buffer used when reading bytes from an input stream. */
+    private static final int STREAM_BUFFER_SIZE = 8192;
+
+    /** Bytes remaining to be read. */
+    private ByteBuffer input;
+
+    /** All of the bytes, when they are all in memory, from the first byte at index 0. */
+    private final ByteBuffer source;
+
+    /** Set once malformed input has been replaced. */
+    private boolean malformed = false;
+
+    /** Optional byte input stream used to refill the input buffer. */
+    private InputStream stream = null;
+
+    /** Bytes copied from an input buffer that has no accessible array. */
+    private byte[] scratch = null;
+
+    /** Low surrogate of a supplementary character that didn't fit in the last read. */
+    private char pendingLowSurrogate = 0;
+
+    /**
+     * Constructor for the Utf8Reader class.
+     * @param input UTF-8 encoded bytes.
+     */
+    Utf8Reader(ByteBuffer input) {
+        this.input = input;
+        source = input.slice();
+    }
+
+    /**
+     * Constructor for the Utf8Reader class, reading from a byte input stream.
+     * @param head Bytes already read from the start of the stream.
+     * @param offset Offset of the first byte to be decoded.
+     * @param length Number of bytes to be decoded.
+     * @param stream Byte input stream to read the remaining bytes from.
+     */
+    Utf8Reader(byte[] head, int offset, int length, InputStream stream) {
+        input = ByteBuffer.allocate(Math.max(length, STREAM_BUFFER_SIZE));
+        input.put(head, offset, length).flip();
+        this.stream = stream;
+        source = null;
+    }
+
+    /**
+     * @return All of the bytes, from the first byte at index 0, or null if they're read from a stream.
+     */
+    ByteBuffer getSource() {
+        return source;
+    }
+
+    /**
+     * @return True if any malformed input has been replaced so far.
+     */
+    boolean isMalformed() {
+        return malformed;
+    }
+
+    /**
+     * This method reads more bytes from the input stream, if there aren't enough bytes left
+     * in the input buffer to be sure of decoding the next character.
+     * @throws IOException Thrown by the byte input stream.
+     */
+    private void refill() throws IOException {
+        while (stream != null && input.remaining() < 4) {
+            input.compact();
+            int count = stream.read(input.array(), input.arrayOffset() + input.position(), input.remaining());
+            if (count < 0) {
+                stream = null;
+            } else {
+                input.position(input.position() + count);
+            }
+            input.flip();
+        }
+    }
+
+    /**
+     * Reads characters into a portion of an array.
+     * @param cbuf Destination buffer.
+     * @param off Offset at which to start storing characters.
+     * @param len Maximum number of characters to read.
+     * @return The number of characters read, or -1 if the end of input has been reached.
+     * @throws IOException Thrown by the byte input stream.
+     */
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        int out = off;
+        if (pendingLowSurrogate != 0) {
+            cbuf[out++] = pendingLowSurrogate;
+            pendingLowSurrogate = 0;
+        }
+        if (input != null) refill();
+        if (input == null || !input.hasRemaining()) {
+            return out > off ? out - off : -1;
+        }
+
+        // Decode from the backing array, or from a copy of the next few bytes.
+        byte[] src;
+        int start;
+        int limit;
+        boolean atEnd;
+        if (input.hasArray()) {
+            src = input.array();
+            start = input.arrayOffset() + input.position();
+            limit = input.arrayOffset() + input.limit();
+            atEnd = stream == null;
+        } else {
+            // Enough bytes for len characters, plus any sequence that starts near the end.
+            int count = Math.min(input.remaining(), len + 3);
+            if (scratch == null || scratch.length < count) scratch = new byte[Math.max(count, 1024)];
+            input.duplicate().get(scratch, 0, count);
+            src = scratch;
+            start = 0;
+            limit = count;
+            atEnd = count == input.remaining();
+        }
+
+        int end = off + len;
+        int pos = start;
+        decode:
+        while (out < end && pos < limit) {
+
+            // Copy ASCII straight across.
+            int b = src[pos];
+            while (b >= 0) {
+                cbuf[out++] = (char) b;
+                if (++pos == limit || out == end) break decode;
+                b = src[pos];
+            }
+
+            // Length of the multi-byte sequence, and range of the second byte to exclude
+            // overlong encodings and code points above U+10FFFF.
+            int lead = b & 0xFF;
+            int length;
+            int codePoint;
+            int min = 0x80;
+            int max = 0xBF;
+            if (lead >= 0xC2 && lead <= 0xDF) {
+                length = 2;
+                codePoint = lead & 0x1F;
+            } else if (lead >= 0xE0 && lead <= 0xEF) {
+                length = 3;
+                codePoint = lead & 0x0F;
+                if (lead == 0xE0) min = 0xA0;
+            } else if (lead >= 0xF0 && lead <= 0xF4) {
+                length = 4;
+                codePoint = lead & 0x07;
+                if (lead == 0xF0) min = 0x90;
+                else if (lead == 0xF4) max = 0x8F;
+            } else {
+                cbuf[out++] = REPLACEMENT;
+                malformed = true;
+                pos++;
+                continue;
+            }
+
+            int i = 1;
+            while (i < length && pos + i < limit) {
+                int next = src[pos + i] & 0xFF;
+                if (next < min || next > max) break;
+                codePoint = (codePoint << 6) | (next & 0x3F);
+                min = 0x80;
+                max = 0xBF;
+                i++;
+            }
+            if (i < length) {
+                // Sequence continues beyond the bytes copied, so decode it next time.
+                if (pos + i == limit && !atEnd) break;
+                cbuf[out++] = REPLACEMENT;
+                malformed = true;
+                pos += i;
+                continue;
+            }
+
+            if (codePoint >= 0xD800 && codePoint <= 0xDFFF) {
+                // Encoded surrogates are malformed as a whole, as with the standard decoder.
+                cbuf[out++] = REPLACEMENT;
+                malformed = true;
+            } else if (codePoint < 0x10000) {
+                cbuf[out++] = (char) codePoint;
+            } else {
+                codePoint -= 0x10000;
+                cbuf[out++] = (char) (0xD800 + (codePoint >> 10));
+                char low = (char) (0xDC00 + (codePoint & 0x3FF));
+                if (out < end) cbuf[out++] = low;
+                else pendingLowSurrogate = low;
+            }
+            pos += length;
+        }
+
+        input.position(input.position() + (pos - start));
+        return out - off;
+    }
+
+    @Override
+    public void close() throws IOException {
+        input = null;
+        if (stream != null) stream.close();
+    }
+}
@@ -0,0 +1,323 @@
+package stever.tagparser;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * This class encodes characters directly to UTF-8 in a set of byte buffers, which are written
+ * to an output stream or channel when they are all full, and then reused. Channels that support
+ * gathering writes are given all the buffers in one write. Markup that is written often can be
+ * encoded once and written as bytes, and text from UTF-8 input can be copied as its original bytes.
+ * Unpaired surrogates are replaced with '?', as with the standard UTF-8 encoder.
+ */
+class Utf8Writer extends Writer {
+
+    /** Byte written in place of an unpaired surrogate. */
+    private static final byte REPLACEMENT = '?';
+
+    /** Size of each of the buffers. */
+    static final int BUFFER_SIZE = 8192;
+
+    /** Number of buffers filled before they are written out together. */
+    private static final int BUFFER_COUNT = 8;
+
+    /** Most bytes written for one character, which is a replaced surrogate followed by a 3-byte sequence. */
+    private static final int ROOM = 4;
+
+    /** Buffers, allocated as they are first needed and kept for reuse by later output. */
+    private final ByteBuffer[] buffers = new ByteBuffer[BUFFER_COUNT];
+
+    /** Index of the buffer being filled. */
+    private int current = 0;
+
+    /** Backing array of the buffer being filled, which is encoded into directly. */
+    private byte[] bytes;
+
+    /** Position in the backing array of the buffer being filled. */
+    private int position = 0;
+
+    /** High surrogate waiting for the low surrogate of a supplementary character. */
+    private char pendingHighSurrogate = 0;
+
+    /** Byte output stream, or null if writing to a channel. */
+    private OutputStream stream = null;
+
+    /** Byte output channel, or null if writing to a stream. */
+    private WritableByteChannel channel = null;
+
+    /** Constructor for the Utf8Writer class, which is given its output by reset(). */
+    Utf8Writer() {
+        buffers[0] = ByteBuffer.allocate(BUFFER_SIZE);
+        bytes = buffers[0].array();
+    }
+
+    /**
+     * This method starts new output to a byte output stream, discarding anything not yet written.
+     * @param stream Byte output stream, or null to release the last output.
+     */
+    void reset(OutputStream stream) {
+        this.stream = stream;
+        this.channel = null;
+        discard();
+    }
+
+    /**
+     * This method starts new output to a channel, discarding anything not yet written.
+     * The channel should be in blocking mode.
+     * @param channel Byte output channel.
+     */
+    void reset(WritableByteChannel channel) {
+        this.stream = null;
+        this.channel = channel;
+        discard();
+    }
+
+    /** This method empties the buffers, keeping them for reuse. */
+    private void discard() {
+        current = 0;
+        bytes = buffers[0].array();
+        position = 0;
+        pendingHighSurrogate = 0;
+    }
+
+    /**
+     * This method moves on to the next buffer, writing out all the buffers if they are full.
+     * @throws IOException Occurs if failed to write to the output.
+     */
+    private void nextBuffer() throws IOException {
+        if (current + 1 == BUFFER_COUNT) {
+            writeBuffers();
+            return;
+        }
+        buffers[current].position(position);
+        current++;
+        if (buffers[current] == null) buffers[current] = ByteBuffer.allocate(BUFFER_SIZE);
+        bytes = buffers[current].array();
+        position = 0;
+    }
+
+    /**
+     * This method writes out the bytes in all the buffers, and starts filling the first buffer again.
+     * @throws IOException Occurs if failed to write to the output.
+     */
+    private void writeBuffers() throws IOException {
+        buffers[current].position(position);
+        for (int i = 0; i <= current; i++) buffers[i].flip();
+
+        if (channel instanceof GatheringByteChannel) {
+            GatheringByteChannel gathering = (GatheringByteChannel) channel;
+            while (buffers[current].hasRemaining()) gathering.write(buffers, 0, current + 1);
+        } else if (channel != null) {
+            for (int i = 0; i <= current; i++) {
+                while (buffers[i].hasRemaining()) channel.write(buffers[i]);
+            }
+        } else if (stream != null) {
+            for (int i = 0; i <= current; i++) stream.write(buffers[i].array(), 0, buffers[i].limit());
+        } else {
+            throw new IOException("No output for UTF-8 writer.");
+        }
+
+        for (int i = 0; i <= current; i++) buffers[i].clear();
+        current = 0;
+        bytes = buffers[0].array();
+        position = 0;
+    }
+
+    /**
+     * This method encodes one character, or holds a high surrogate until the next character.
+     * The caller makes sure there is room for ROOM bytes.
+     * @param c Character to encode.
+     */
+    private void encode(char c) {
+        if (pendingHighSurrogate != 0) {
+            if (Character.isLowSurrogate(c)) {
+                int codePoint = Character.toCodePoint(pendingHighSurrogate, c);
+                pendingHighSurrogate = 0;
+                bytes[position++] = (byte) (0xF0 | (codePoint >> 18));
+                bytes[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                bytes[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                bytes[position++] = (byte) (0x80 | (codePoint & 0x3F));
+                return;
+            }
+            pendingHighSurrogate = 0;
+            bytes[position++] = REPLACEMENT;
+        }
+        if (c < 0x80) {
+            bytes[position++] = (byte) c;
+        } else if (c < 0x800) {
+            bytes[position++] = (byte) (0xC0 | (c >> 6));
+            bytes[position++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c)) {
+            pendingHighSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            bytes[position++] = REPLACEMENT;
+        } else {
+            bytes[position++] = (byte) (0xE0 | (c >> 12));
+            bytes[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            bytes[position++] = (byte) (0x80 | (c & 0x3F));
+        }
+    }
+
+    /**
+     * This method encodes a range of characters, copying runs of ASCII straight across.
+     * @param text Characters to encode.
+     * @param start Index of the first character.
+     * @param end Index after the last character.
+     * @throws IOException Occurs if failed to write to the output.
+     */
+    private void encode(CharSequence text, int start, int end) throws IOException {
+        int i = start;
+        while (i < end) {
+            if (position + ROOM > BUFFER_SIZE) nextBuffer();
+            if (pendingHighSurrogate == 0) {
+                int limit = Math.min(end, i + BUFFER_SIZE - ROOM - position);
+                char c;
+                while (i < limit && (c = text.charAt(i)) < 0x80) {
+                    bytes[position++] = (byte) c;
+                    i++;
+                }
+                if (i == end) break;
+            }
+            encode(text.charAt(i++));
+        }
+    }
+
+    /**
+     * This method encodes a range of characters from an array, copying runs of ASCII straight across.
+     * @param chars Characters to encode.
+     * @param start Index of the first character.
+     * @param end Index after the last character.
+     * @throws IOException Occurs if failed to write to the output.
+     */
+    private void encode(char[] chars, int start, int end) throws IOException {
+        int i = start;
+        while (i < end) {
+            if (position + ROOM > BUFFER_SIZE) nextBuffer();
+            if (pendingHighSurrogate == 0) {
+                int limit = Math.min(end, i + BUFFER_SIZE - ROOM - position);
+                char c;
+                while (i < limit && (c = chars[i]) < 0x80) {
+                    bytes[position++] = (byte) c;
+                    i++;
+                }
+                if (i == end) break;
+            }
+            encode(chars[i++]);
+        }
+    }
+
+    /**
+     * This method writes bytes that are already UTF-8 encoded, such as markup encoded once in advance.
+     * @param utf8 Encoded bytes.
+     * @throws IOException Occurs if failed to write to the output.
+     */
+    void write(byte[] utf8) throws IOException {
+        endPendingSurrogate();
+        int offset = 0;
+        while (offset < utf8.length) {
+            if (position == BUFFER_SIZE) nextBuffer();
+            int count = Math.min(utf8.length - offset, BUFFER_SIZE - position);
+            System.arraycopy(utf8, offset, bytes, position, count);
+            position += count;
+            offset += count;
+        }
+    }
+
+    /**
+     * This method copies bytes that are already UTF-8 encoded from a source buffer, such as text
+     * passed through from UTF-8 input. The position and limit of the source aren't changed.
+     * @param source Encoded bytes, which may be a direct or mapped buffer.
+     * @param start Index of the first byte.
+     * @param end Index after the last byte.
+     * @throws IOException Occurs if failed to write to the output.
+     */
+    void write(ByteBuffer source, int start, int end) throws IOException {
+        endPendingSurrogate();
+        ByteBuffer view = source.hasArray() ? null : source.duplicate();
+        int offset = start;
+        while (offset < end) {
+            if (position == BUFFER_SIZE) nextBuffer();
+            int count = Math.min(end - offset, BUFFER_SIZE - position);
+            if (view == null) {
+                System.arraycopy(source.array(), source.arrayOffset() + offset, bytes, position, count);
+            } else {
+                view.limit(offset + count);
+                view.position(offset);
+                view.get(bytes, position, count);
+            }
+            position += count;
+            offset += count;
+        }
+    }
+
+    /**
+     * This method writes a high surrogate that wasn't followed by its low surrogate as '?'.
+     * @throws IOException Occurs if failed to write to the output.
+     */
+    private void endPendingSurrogate() throws IOException {
+        if (pendingHighSurrogate != 0) {
+            if (position + 1 > BUFFER_SIZE) nextBuffer();
+            pendingHighSurrogate = 0;
+            bytes[position++] = REPLACEMENT;
+        }
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        if (position + ROOM > BUFFER_SIZE) nextBuffer();
+        encode((char) c);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        encode(cbuf, off, off + len);
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        encode(str, off, off + len);
+    }
+
+    @Override
+    public Writer append(CharSequence csq) throws IOException {
+        if (csq == null) csq = "null";
+        encode(csq, 0, csq.length());
+        return this;
+    }
+
+    @Override
+    public Writer append(CharSequence csq, int start, int end) throws IOException {
+        if (csq == null) csq = "null";
+        encode(csq, start, end);
+        return this;
+    }
+
+    @Override
+    public Writer append(char c) throws IOException {
+        write(c);
+        return this;
+    }
+
+    /**
+     * This method writes out all the bytes encoded so far. An unpaired high surrogate at the end
+     * is written as '?', so this is only called when the text is complete.
+     * @throws IOException Occurs if failed to write to the output.
+     */
+    @Override
+    public void flush() throws IOException {
+        endPendingSurrogate();
+        if (current > 0 || position > 0) writeBuffers();
+        if (stream != null) stream.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        if (stream != null) stream.close();
+        if (channel != null) channel.close();
+    }
+}
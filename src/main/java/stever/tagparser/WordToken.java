@@ -1,21 +1,27 @@
 package stever.tagparser;
 
+import java.io.IOException;
+
 public class WordToken extends ParseToken {
 
-    private String word;
+    private CharSequence word;
 
-    public WordToken(String word) {
+    public WordToken(CharSequence word) {
         this.word = word;
     }
 
     public String getWord() {
+        return word.toString();
+    }
+
+    public CharSequence getText() {
         return word;
     }
 
     public String toString() {
         StringBuilder result = new StringBuilder();
         result.append("Word: ");
-        result.append(withQuotes(word));
+        result.append(withQuotes(word.toString()));
         return result.toString();
     }
 
@@ -30,6 +36,10 @@ public class WordToken extends ParseToken {
     }
 
     public String render() {
-        return word;
+        return word.toString();
+    }
+
+    public void renderTo(Appendable out) throws IOException {
+        CharSpan.append(out, word, 0, word.length());
     }
 }
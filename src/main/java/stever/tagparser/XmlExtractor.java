@@ -3,6 +3,12 @@ package stever.tagparser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.Hashtable;
 import java.util.List;
@@ -288,22 +294,115 @@ public class XmlExtractor {
         entityMappings.put(entity, code);
     }
 
-    /** These elements are always empty elements. End-tag is redundant for these. */
-    private static final List<String> emptyElements;
+    /** These entities are the only entities supported by default in XML. */
+    private static final List<String> xmlEntities;
     static {
-        emptyElements = Arrays.asList("br", "meta", "link", "base", "input", "img", "area");
+        xmlEntities = Arrays.asList("amp", "lt", "gt", "quot", "apos");
     }
 
-    /** These elements appear only once in an HTML document. */
-    private static final List<String> singleElements;
-    static {
-        singleElements = Arrays.asList("html", "head", "body");
+    /** Markup written by conversions, with its UTF-8 encoding for writing bytes directly. */
+    private static final class Markup {
+        final String text;
+        final byte[] utf8;
+
+        Markup(String text) {
+            this.text = text;
+            utf8 = text.getBytes(UTF8);
+        }
     }
 
-    /** These entities are the only entities supported by default in XML. */
-    private static final List<String> xmlEntities;
-    static {
-        xmlEntities = Arrays.asList("amp", "lt", "gt", "quot", "apos");
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Markup XML_DECLARATION = new Markup("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+    private static final Markup END_TAG_OPEN = new Markup("</");
+    private static final Markup SCRIPT_CDATA_START = new Markup("/*<![CDATA[*/");
+    private static final Markup SCRIPT_CDATA_END = new Markup("/*]]>*/");
+    private static final Markup CDATA_START = new Markup("<![CDATA[");
+    private static final Markup CDATA_END = new Markup("]]>");
+    private static final Markup COMMENT_START = new Markup("<!--");
+    private static final Markup COMMENT_END = new Markup("-->");
+
+    /**
+     * Appends markup, as bytes that are already encoded when writing UTF-8 directly.
+     * @param out Output to append to.
+     * @param markup Markup to append.
+     * @throws IOException Occurs if failed to write to the output.
+     */
+    private static void append(Appendable out, Markup markup) throws IOException {
+        if (out instanceof Utf8Writer) {
+            ((Utf8Writer) out).write(markup.utf8);
+        } else {
+            out.append(markup.text);
+        }
+    }
+
+    /**
+     * Appends character data that is passed through unchanged. When both the input and output are
+     * UTF-8, the original bytes of the input are copied instead of the characters being encoded again.
+     * @param out Output to append to.
+     * @param reader Character input stream that the text was read from.
+     * @param text Character data, which may be a slice of the reader block buffer.
+     * @param start Index of the first character to append.
+     * @throws IOException Occurs if failed to write to the output.
+     */
+    private static void appendText(Appendable out, ParseReader reader, CharSequence text, int start)
+            throws IOException {
+        if (out instanceof Utf8Writer && reader.copySource(text, start, text.length(), (Utf8Writer) out)) return;
+        CharSpan.append(out, text, start, text.length());
+    }
+
+    /** Largest content string and output buffer to be kept for reuse by the next conversion on a thread. */
+    private static final int MAX_RETAINED_SIZE = 1 << 20;
+
+    /** The reader, parser, nesting stack and output buffer reused by conversions on the same thread. */
+    private static class Conversion {
+        final ParseReader reader = new ParseReader("");
+        final TagParser parser = new TagParser(reader);
+        final Stack<String> nestingStack = new Stack<String>();
+        StringBuilder result = new StringBuilder();
+        Utf8Writer utf8 = null;
+        boolean busy = false;
+
+        /** @return UTF-8 writer, with buffers that are kept for reuse. */
+        Utf8Writer getUtf8Writer() {
+            if (utf8 == null) utf8 = new Utf8Writer();
+            return utf8;
+        }
+    }
+
+    private static final ThreadLocal<Conversion> conversions = new ThreadLocal<Conversion>() {
+        @Override
+        protected Conversion initialValue() {
+            return new Conversion();
+        }
+    };
+
+    /**
+     * Takes the conversion objects for this thread, or new ones if they are already in use.
+     * @return Conversion objects to be released when finished with.
+     */
+    private static Conversion acquire() {
+        Conversion conversion = conversions.get();
+        if (conversion.busy) return new Conversion();
+        conversion.busy = true;
+        return conversion;
+    }
+
+    /**
+     * Clears the conversion objects to be reused. The reader block buffer and the output buffer keep
+     * their capacity, up to MAX_RETAINED_SIZE, so they still hold a copy of the last document's content
+     * and XML until the next conversion on the thread overwrites them.
+     * @param conversion Conversion objects from acquire().
+     */
+    private static void release(Conversion conversion) {
+        conversion.parser.reset(conversion.reader);
+        conversion.nestingStack.clear();
+        if (conversion.result.capacity() > MAX_RETAINED_SIZE) {
+            conversion.result = new StringBuilder();
+        } else {
+            conversion.result.setLength(0);
+        }
+        if (conversion.utf8 != null) conversion.utf8.reset((OutputStream) null);
+        conversion.busy = false;
     }
 
     /** Returns null when nesting stack will be empty. */
@@ -313,163 +412,307 @@ public class XmlExtractor {
     }
 
     public static String toXml(String html) {
-        StringBuilder result = new StringBuilder();
+        Conversion conversion = acquire();
+        try {
+            if (html.length() > MAX_RETAINED_SIZE) {
+                return toXml(conversion, new ParseReader(html));
+            }
+            conversion.reader.reset(html);
+            return toXml(conversion, conversion.reader);
+        } finally {
+            release(conversion);
+        }
+    }
 
-        // Standard XML file header, including entities that are likely to be used.
-        result.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+    /**
+     * Converts HTML read from the character input stream, such as a memory-mapped file.
+     * @param reader Character input stream.
+     * @return XML string, or null if the conversion failed.
+     */
+    public static String toXml(ParseReader reader) {
+        Conversion conversion = acquire();
+        try {
+            return toXml(conversion, reader);
+        } finally {
+            release(conversion);
+        }
+    }
 
-        final ParseReader reader = new ParseReader(html);
-        final TagParser parser = new TagParser(reader);
-        final Stack<String> nestingStack = new Stack<String>();
+    /**
+     * Converts HTML read from the character input stream, using the reusable conversion objects.
+     * @param conversion Conversion objects from acquire().
+     * @param reader Character input stream.
+     * @return XML string, or null if the conversion failed.
+     */
+    private static String toXml(Conversion conversion, ParseReader reader) {
+        StringBuilder result = conversion.result;
+        try {
+            convert(conversion, reader, result);
+        } catch (Exception ex) {
+            log.error("EXCEPTION", ex);
+            return null;
+        }
+        return result.toString();
+    }
+
+    /**
+     * Converts HTML read from a character stream, writing the XML to a character stream as it is produced.
+     * Memory use is bounded by the nesting stack, the input block buffer and the largest single token,
+     * rather than by the size of the document.
+     * @param reader Character input stream.
+     * @param writer Character output stream, which is best buffered. It is flushed but not closed.
+     * @throws IOException Occurs if failed to read or write, or if the conversion failed part way through.
+     */
+    public static void toXml(Reader reader, Writer writer) throws IOException {
+        toXml(new ParseReader(reader), writer);
+    }
 
+    /**
+     * Converts HTML read from the character input stream, writing the XML to a character stream as it is produced.
+     * @param reader Character input stream.
+     * @param writer Character output stream, which is best buffered. It is flushed but not closed.
+     * @throws IOException Occurs if failed to read or write, or if the conversion failed part way through.
+     */
+    public static void toXml(ParseReader reader, Writer writer) throws IOException {
+        Conversion conversion = acquire();
         try {
-            ParseToken token = parser.getNextToken();
-
-            // Ignore leading white-space.
-            while (token instanceof SpacesToken || token instanceof NewlineToken || token instanceof DoctypeToken)
-                token = parser.getNextToken();
-
-            while (!(token instanceof EOFToken)) {
-                log.debug("Token = {}", token.toString());
-                if (token instanceof TagToken) {
-                    TagToken t = (TagToken) token;
-                    if (!t.getTag().isEndTag()) {
-
-                        // Deal with start-tag. Typically this will be new element nesting.
-                        Tag startTag = t.getTag();
-                        if (startTag instanceof EmptyElement) {
-                            result.append(startTag.toString());
-                        } else {
+            write(conversion, reader, writer);
+        } finally {
+            release(conversion);
+        }
+    }
 
-                            // Tags that are always empty elements are converted to empty elements here.
-                            // Element names are pushed onto the stack to balance elements with missing end-tag.
-                            String startTagName = startTag.getName().toLowerCase();
-                            log.debug("startTagName = {}", startTagName);
-                            if (emptyElements.contains(startTagName)) {
-                                result.append(new EmptyElement(startTag));
-                            } else {
-                                result.append(startTag.toString());
-                                nestingStack.push(startTagName);
-                            }
-                        }
-                    } else {
+    /**
+     * Converts HTML read from the character input stream, encoding the XML as UTF-8 straight into
+     * byte buffers that are written to the output stream as they fill up.
+     * When the reader has UTF-8 content all in memory, such as a byte array or a memory-mapped file,
+     * text that passes through unchanged is copied as its original bytes rather than encoded again.
+     * @param reader Character input stream.
+     * @param output Byte output stream. It is flushed but not closed.
+     * @throws IOException Occurs if failed to read or write, or if the conversion failed part way through.
+     */
+    public static void toXml(ParseReader reader, OutputStream output) throws IOException {
+        Conversion conversion = acquire();
+        try {
+            Utf8Writer writer = conversion.getUtf8Writer();
+            writer.reset(output);
+            reader.trackSourceOffsets();
+            write(conversion, reader, writer);
+        } finally {
+            release(conversion);
+        }
+    }
 
-                        // Deal with end-tag.
-                        Tag endTag = t.getTag();
+    /**
+     * Converts HTML read from the character input stream, encoding the XML as UTF-8 straight into
+     * byte buffers that are written to the channel as they fill up, with gathering writes if supported.
+     * When the reader has UTF-8 content all in memory, such as a byte array or a memory-mapped file,
+     * text that passes through unchanged is copied as its original bytes rather than encoded again.
+     * @param reader Character input stream.
+     * @param channel Byte output channel, in blocking mode. It is not closed.
+     * @throws IOException Occurs if failed to read or write, or if the conversion failed part way through.
+     */
+    public static void toXml(ParseReader reader, WritableByteChannel channel) throws IOException {
+        Conversion conversion = acquire();
+        try {
+            Utf8Writer writer = conversion.getUtf8Writer();
+            writer.reset(channel);
+            reader.trackSourceOffsets();
+            write(conversion, reader, writer);
+        } finally {
+            release(conversion);
+        }
+    }
 
-                        // Remove the '/' from beginning of the tag-name for comparison.
-                        String endTagName = endTag.getName().substring(1).toLowerCase();
-                        log.debug("endTagName = {}", endTagName);
+    /**
+     * Converts HTML read from the character input stream, writing the XML to a character stream as it is produced.
+     * @param conversion Conversion objects from acquire().
+     * @param reader Character input stream.
+     * @param writer Character output stream, which is flushed at the end.
+     * @throws IOException Occurs if failed to read or write, or if the conversion failed part way through.
+     */
+    private static void write(Conversion conversion, ParseReader reader, Writer writer) throws IOException {
+        try {
+            convert(conversion, reader, writer);
+        } catch (IOException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            log.error("EXCEPTION", ex);
+            throw new IOException("Conversion failed: " + ex.getMessage(), ex);
+        }
+        writer.flush();
+    }
+
+    /**
+     * Converts HTML read from the character input stream, appending the XML to the output as each token is parsed.
+     * @param conversion Conversion objects from acquire().
+     * @param reader Character input stream.
+     * @param out Output to append to.
+     * @throws Exception Occurs if the conversion failed.
+     */
+    private static void convert(Conversion conversion, ParseReader reader, Appendable out) throws Exception {
+
+        // Standard XML file header, including entities that are likely to be used.
+        append(out, XML_DECLARATION);
+
+        final TagParser parser = conversion.parser;
+        parser.reset(reader);
+        parser.setSliceTokens(true);
+        parser.setTextTokens(true);
+        final Stack<String> nestingStack = conversion.nestingStack;
+
+        ParseToken token = parser.getNextToken();
+
+        // Ignore leading white-space.
+        while (token instanceof DoctypeToken || token instanceof TextToken &&
+                leadingWhiteSpace(((TextToken) token).getText()) == ((TextToken) token).getText().length())
+            token = parser.getNextToken();
+        if (token instanceof TextToken) {
+            CharSequence text = ((TextToken) token).getText();
+            appendText(out, reader, text, leadingWhiteSpace(text));
+            token = parser.getNextToken();
+        }
 
-                        // Ignore some end-tags for empty elements that are handled with or without empty element syntax.
-                        if (emptyElements.contains(endTagName)) {
-                            log.info("Ignoring redundant end-tag: {}", endTagName);
+        while (!(token instanceof EOFToken)) {
+            log.debug("Token = {}", token);
+            if (token instanceof TagToken) {
+                TagToken t = (TagToken) token;
+                if (!t.getTag().isEndTag()) {
+
+                    // Deal with start-tag. Typically this will be new element nesting.
+                    Tag startTag = t.getTag();
+                    if (startTag instanceof EmptyElement) {
+                        startTag.renderTo(out);
+                    } else {
+
+                        // Tags that are always empty elements are converted to empty elements here.
+                        // Element names are pushed onto the stack to balance elements with missing end-tag.
+                        String startTagName = startTag.getName();
+                        log.debug("startTagName = {}", startTagName);
+                        if (HtmlElements.isVoid(startTag.getElement())) {
+                            new EmptyElement(startTag).renderTo(out);
                         } else {
+                            startTag.renderTo(out);
+                            nestingStack.push(startTagName);
+                        }
+                    }
+                } else {
 
-                            // Keep element tags matched appropriately.
-                            String peek = peekNextNested(nestingStack);
-                            if (peek == null) {
-                                log.warn("Ignoring extra content at end of document! </{}> ({})", endTagName, parser.getCharacterPosition());
-                            } else {
-                                if (peek.equals(endTagName)) {
-                                    nestingStack.pop();
-                                } else {
+                    // Deal with end-tag.
+                    Tag endTag = t.getTag();
 
-                                    // Pair all the previous unmatched tags for these important structural elements.
-                                    // These elements appear only once, so should never be automatically closed.
-                                    if (singleElements.contains(endTagName)) {
+                    // Known element names are the same instance as the start-tag name on the stack.
+                    String endTagName = endTag.getName();
+                    log.debug("endTagName = {}", endTagName);
 
-                                        while (peek != endTagName) {
-                                            StringBuilder endtag = (new StringBuilder()).append("</").append(peek).append('>');
-                                            log.warn("Adding a missing end-tag! {} ({})", endtag, parser.getCharacterPosition());
-                                            result.append(endtag);
-                                            nestingStack.pop();
-                                            peek = peekNextNested(nestingStack);
-                                        }
+                    // Ignore some end-tags for empty elements that are handled with or without empty element syntax.
+                    if (HtmlElements.isVoid(endTag.getElement())) {
+                        log.info("Ignoring redundant end-tag: {}", endTagName);
+                    } else {
 
-                                        // Remove the current item from the stack, as it has been paired now.
-                                        nestingStack.pop();
+                        // Keep element tags matched appropriately.
+                        String peek = peekNextNested(nestingStack);
+                        if (peek == null) {
+                            log.warn("Ignoring extra content at end of document! </{}> ({})", endTagName, parser.getCharacterPosition());
+                        } else {
+                            if (peek.equals(endTagName)) {
+                                nestingStack.pop();
+                            } else {
 
-                                    } else {
+                                // Pair all the previous unmatched tags for these important structural elements.
+                                // These elements appear only once, so should never be automatically closed.
+                                if (HtmlElements.isSingle(endTag.getElement())) {
 
-                                        // Insert a matching start-tag before the unbalanced end-tag found.
-                                        StringBuilder startTag = (new StringBuilder()).append("<").append(endTagName).append('>');
-                                        log.warn("Adding a missing start-tag! {} ({})", startTag, parser.getCharacterPosition());
-                                        result.append(startTag);
+                                    while (peek != endTagName) {
+                                        log.warn("Adding a missing end-tag! </{}> ({})", peek, parser.getCharacterPosition());
+                                        append(out, END_TAG_OPEN);
+                                        out.append(peek).append('>');
+                                        nestingStack.pop();
+                                        peek = peekNextNested(nestingStack);
                                     }
-                                }
 
-                                // Write the current element end-tag.
-                                result.append("</").append(endTagName).append('>');
+                                    // Remove the current item from the stack, as it has been paired now.
+                                    nestingStack.pop();
+
+                                } else {
+
+                                    // Insert a matching start-tag before the unbalanced end-tag found.
+                                    log.warn("Adding a missing start-tag! <{}> ({})", endTagName, parser.getCharacterPosition());
+                                    out.append('<').append(endTagName).append('>');
+                                }
                             }
+
+                            // Write the current element end-tag.
+                            append(out, END_TAG_OPEN);
+                            out.append(endTagName).append('>');
                         }
                     }
-                } else if (token instanceof WordToken) {
-                    WordToken t = (WordToken) token;
-                    result.append(t.getWord());
-                } else if (token instanceof SpacesToken) {
-                    SpacesToken t = (SpacesToken) token;
-                    result.append(t.getSpaces());
-                } else if (token instanceof NumberToken) {
-                    NumberToken t = (NumberToken) token;
-                    result.append(t.getNumber());
-                } else if (token instanceof EntityReferenceToken) {
-                    EntityReferenceToken t = (EntityReferenceToken) token;
-                    result.append(xmlEntity(t.getName()));
-                } else if (token instanceof PunctuationToken) {
-                    PunctuationToken t = (PunctuationToken) token;
-                    result.append(t.getCharacter());
-                } else if (token instanceof CharacterEntityToken) {
-                    CharacterEntityToken t = (CharacterEntityToken) token;
-                    result.append(t.getCharacter());
-                } else if (token instanceof NewlineToken) {
-                    result.append('\n');
-                } else if (token instanceof ScriptToken) {
-                    ScriptToken t = (ScriptToken) token;
-                    if (t.getScript().length() > 0) { // Script element contents are often empty.
-                        // NOTE: Removing any prior use of CDATA section in script, to avoid conflict.
-                        String script = t.getScript().replaceAll("<\\!\\[CDATA\\[", "").replaceAll("\\]\\]>", "");
-                        result.append("/*<![CDATA[*/").append(script).append("/*]]>*/");
-                    }
-                } else if (token instanceof CDataToken) {
-                    CDataToken t = (CDataToken) token;
-                    result.append("<![CDATA[").append(t.getData()).append("]]>");
-                } else if (token instanceof CommentToken) {
-                    CommentToken t = (CommentToken) token;
-                    result.append("<!--").append(t.getComment()).append("-->");
-                } else if (token instanceof DoctypeToken) {
-                    // Ignore.
-                } else if (token instanceof ProcessingInstructionToken) {
-                    // Ignore.
-                } else {
-                    log.warn("Unexpected token! {}", token.toString());
                 }
-                token = parser.getNextToken();
+            } else if (token instanceof TextToken) {
+                appendText(out, reader, ((TextToken) token).getText(), 0);
+            } else if (token instanceof EntityReferenceToken) {
+                EntityReferenceToken t = (EntityReferenceToken) token;
+                appendXmlEntity(out, t.getName());
+            } else if (token instanceof CharacterEntityToken) {
+                CharacterEntityToken t = (CharacterEntityToken) token;
+                out.append(t.getCharacter());
+            } else if (token instanceof ScriptToken) {
+                ScriptToken t = (ScriptToken) token;
+                if (t.getScript().length() > 0) { // Script element contents are often empty.
+                    // NOTE: Removing any prior use of CDATA section in script, to avoid conflict.
+                    String script = t.getScript().replaceAll("<\\!\\[CDATA\\[", "").replaceAll("\\]\\]>", "");
+                    append(out, SCRIPT_CDATA_START);
+                    out.append(script);
+                    append(out, SCRIPT_CDATA_END);
+                }
+            } else if (token instanceof CDataToken) {
+                CDataToken t = (CDataToken) token;
+                CharSequence text = t.getText();
+                append(out, CDATA_START);
+                appendText(out, reader, text, 0);
+                append(out, CDATA_END);
+            } else if (token instanceof CommentToken) {
+                append(out, COMMENT_START);
+                appendText(out, reader, ((CommentToken) token).getText(), 0);
+                append(out, COMMENT_END);
+            } else if (token instanceof DoctypeToken) {
+                // Ignore.
+            } else if (token instanceof ProcessingInstructionToken) {
+                // Ignore.
+            } else {
+                log.warn("Unexpected token! {}", token.toString());
             }
-
-            log.info(parser.getCompletionReport());
-        } catch (Exception ex) {
-            log.error("EXCEPTION", ex);
-            result = null;
+            token = parser.getNextToken();
         }
 
-        if (result == null) return null;
-        return result.toString();
+        if (log.isInfoEnabled()) log.info(parser.getCompletionReport());
+    }
+
+    /**
+     * Counts the white-space characters at the start of some text.
+     * @param text Character data.
+     * @return Number of spaces, tabs and newlines before anything else.
+     */
+    private static int leadingWhiteSpace(CharSequence text) {
+        int count = 0;
+        while (count < text.length()) {
+            char c = text.charAt(count);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') break;
+            count++;
+        }
+        return count;
     }
 
-    /** Convert entity reference for valid XML text. */
-    private static String xmlEntity(String entityName) throws Exception {
+    /** Convert entity reference for valid XML text, appending it to the output. */
+    private static void appendXmlEntity(Appendable out, String entityName) throws Exception {
         if (xmlEntities.contains(entityName)) {
-            return (new StringBuilder())
-                .append('&').append(entityName).append(';')
-                .toString();
+            out.append('&').append(entityName).append(';');
         } else {
-            if (!entityMappings.containsKey(entityName)) {
+            Integer code = entityMappings.get(entityName);
+            if (code == null) {
                 throw new Exception("Unsupported entity name: " + entityName);
             }
-            return (new StringBuilder())
-                .append("&#").append(entityMappings.get(entityName)).append(';')
-                .toString();
+            out.append("&#").append(code.toString()).append(';');
         }
     }
 }
@@ -0,0 +1,28 @@
+package stever.tagparser;
+
+/**
+ * This is the original 16-bit checksum, which simply exclusive-ors the characters together.
+ * It's cheap, but only useful as a rough check that content hasn't changed.
+ */
+public class XorChecksum extends ContentChecksum {
+
+    private char checksum = (char) 0;
+
+    public void update(char[] chars, int offset, int length) {
+        // http://atlas.csd.net/~cgadd/knowbase/CRC0013.HTM
+        // xor char with the checksum
+        char sum = checksum;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            sum ^= chars[i];
+        }
+        checksum = sum;
+    }
+
+    public long getValue() {
+        return checksum;
+    }
+
+    public void reset() {
+        checksum = (char) 0;
+    }
+}
@@ -0,0 +1,134 @@
+package stever.tagparser;
+
+/**
+ * This is the 64-bit xxHash (XXH64) of the content, encoded as UTF-16LE, with a seed of zero.
+ * Blocks are hashed 16 characters (one 32-byte stripe) at a time, so it's fast and has few
+ * enough collisions to be used to find identical documents.
+ */
+public class XxHash64Checksum extends ContentChecksum {
+
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    /** Number of characters in each stripe of four 64-bit lanes. */
+    private static final int STRIPE = 16;
+
+    private long v1;
+    private long v2;
+    private long v3;
+    private long v4;
+
+    /** Total number of characters hashed. */
+    private long total;
+
+    /** Characters left over from the last block, that don't make up a whole stripe. */
+    private final char[] pending = new char[STRIPE];
+    private int pendingCount;
+
+    public XxHash64Checksum() {
+        reset();
+    }
+
+    public void update(char[] chars, int offset, int length) {
+        total += length;
+        int i = offset;
+        int end = offset + length;
+
+        // Complete a stripe with the characters left over from the last block.
+        if (pendingCount > 0) {
+            int count = Math.min(STRIPE - pendingCount, length);
+            System.arraycopy(chars, i, pending, pendingCount, count);
+            pendingCount += count;
+            i += count;
+            if (pendingCount < STRIPE) return;
+            stripe(pending, 0);
+            pendingCount = 0;
+        }
+
+        // Whole stripes.
+        for (int stripes = end - STRIPE; i <= stripes; i += STRIPE) {
+            stripe(chars, i);
+        }
+
+        // Keep the rest for the next block.
+        pendingCount = end - i;
+        System.arraycopy(chars, i, pending, 0, pendingCount);
+    }
+
+    public long getValue() {
+        long hash;
+        if (total >= STRIPE) {
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7)
+                    + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            hash = mergeRound(hash, v1);
+            hash = mergeRound(hash, v2);
+            hash = mergeRound(hash, v3);
+            hash = mergeRound(hash, v4);
+        } else {
+            hash = PRIME5;
+        }
+        hash += total * 2;
+
+        // Remaining 8-byte, 4-byte and single byte chunks.
+        int i = 0;
+        for (; i + 4 <= pendingCount; i += 4) {
+            hash ^= round(0, lane(pending, i));
+            hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+        }
+        if (i + 2 <= pendingCount) {
+            long word = (pending[i] | (pending[i + 1] << 16)) & 0xFFFFFFFFL;
+            hash ^= word * PRIME1;
+            hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+            i += 2;
+        }
+        if (i < pendingCount) {
+            hash ^= (pending[i] & 0xFF) * PRIME5;
+            hash = Long.rotateLeft(hash, 11) * PRIME1;
+            hash ^= (pending[i] >>> 8) * PRIME5;
+            hash = Long.rotateLeft(hash, 11) * PRIME1;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= PRIME2;
+        hash ^= hash >>> 29;
+        hash *= PRIME3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+
+    public void reset() {
+        v1 = PRIME1 + PRIME2;
+        v2 = PRIME2;
+        v3 = 0;
+        v4 = -PRIME1;
+        total = 0;
+        pendingCount = 0;
+    }
+
+    /** Processes 16 characters as four 64-bit little-endian lanes. */
+    private void stripe(char[] chars, int i) {
+        v1 = round(v1, lane(chars, i));
+        v2 = round(v2, lane(chars, i + 4));
+        v3 = round(v3, lane(chars, i + 8));
+        v4 = round(v4, lane(chars, i + 12));
+    }
+
+    /** Four characters as a 64-bit little-endian lane. */
+    private static long lane(char[] chars, int i) {
+        return chars[i] | ((long) chars[i + 1] << 16) | ((long) chars[i + 2] << 32) | ((long) chars[i + 3] << 48);
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * PRIME2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME1;
+    }
+
+    private static long mergeRound(long acc, long value) {
+        acc ^= round(0, value);
+        return acc * PRIME1 + PRIME4;
+    }
+}
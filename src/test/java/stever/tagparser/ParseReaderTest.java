@@ -0,0 +1,188 @@
+package stever.tagparser;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+
+public class ParseReaderTest {
+
+    private static final Logger log = LoggerFactory.getLogger(ParseReaderTest.class);
+
+    private static final String TEXT = "<html>\r\n<body>\r\n<p>Hello\r\nworld</p>\r\n</body>\r\n</html>\r\n";
+
+    @Test
+    public void readBlocks() throws IOException {
+        ParseReader expected = new ParseReader(TEXT);
+        ParseReader reader = new ParseReader(new StringReader(TEXT), null, 3);
+        char c;
+        do {
+            c = reader.read();
+            assertEquals(expected.read(), c);
+            assertEquals(expected.getLineNumber(), reader.getLineNumber());
+            assertEquals(expected.getColumnNumber(), reader.getColumnNumber());
+        } while (c != ParseReader.EOF);
+        assertEquals(expected.getCharCount(), reader.getCharCount());
+        assertEquals(expected.getChecksum(), reader.getChecksum());
+        log.debug("Read {} characters", reader.getCharCount());
+    }
+
+    @Test
+    public void pushback() throws IOException {
+        ParseReader reader = new ParseReader(new StringReader("abc&d"), null, 4);
+        assertEquals('a', reader.read());
+        assertEquals('b', reader.read());
+        reader.pushback("ab");
+        assertEquals('a', reader.read());
+        reader.pushback('x');
+        reader.pushback("yz");
+        assertEquals('y', reader.read());
+        assertEquals('z', reader.read());
+        assertEquals('x', reader.read());
+        assertEquals('b', reader.read());
+        assertEquals('c', reader.read());
+        assertEquals('&', reader.read());
+        reader.pushback("&amp;");
+        for (char c : "&amp;d".toCharArray()) {
+            assertEquals(c, reader.read());
+        }
+        assertEquals(ParseReader.EOF, reader.read());
+    }
+
+    @Test
+    public void mapFile() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 2000; i++) text.append("<p>caf\u00e9 \u65e5\u672c\u8a9e \ud83d\ude00</p>\r\n");
+        checkMapped(text.toString(), Charset.forName("UTF-8"));
+        checkMapped(text.toString(), Charset.forName("UTF-16LE"));
+
+        // Supplementary character decoded when there's room for only one more character in the block.
+        StringBuilder edge = new StringBuilder();
+        for (int i = 0; i < ParseReader.DEFAULT_BLOCK_SIZE - 1; i++) edge.append('a');
+        edge.append("\ud83d\ude00");
+        checkMapped(edge.toString(), Charset.forName("UTF-16LE"));
+    }
+
+    @Test
+    public void readUtf8() throws IOException {
+        Charset utf8 = Charset.forName("UTF-8");
+        byte[][] inputs = {
+            "<p class=\"caf\u00e9\">\u65e5\u672c\u8a9e \ud83d\ude00</p>\r\n".getBytes(utf8),
+            { '<', 'p', '>', (byte) 0xC3, '<', (byte) 0xE2, (byte) 0x82, '>', (byte) 0xC0, (byte) 0xAF },
+            { (byte) 0xED, (byte) 0xA0, (byte) 0x80, (byte) 0xF4, (byte) 0x90, (byte) 0x80, (byte) 0x80 },
+            { 'a', (byte) 0xF0, (byte) 0x9F, (byte) 0x98 }
+        };
+        for (byte[] input : inputs) {
+            ByteBuffer direct = ByteBuffer.allocateDirect(input.length);
+            direct.put(input).flip();
+            ParseReader[] readers = { new ParseReader(input), new ParseReader(direct) };
+            for (ParseReader reader : readers) {
+                ParseReader expected = new ParseReader(new String(input, utf8));
+                char c;
+                do {
+                    c = reader.read();
+                    assertEquals(expected.read(), c);
+                } while (c != ParseReader.EOF);
+            }
+        }
+    }
+
+    @Test
+    public void detectCharset() throws IOException {
+        String text = "<html><head><META HTTP-EQUIV=\"Content-Type\" CONTENT=\"text/html; charset=ISO-8859-1\">"
+                + "</head><body>caf\u00e9</body></html>";
+        assertEquals(text, readAll(new ParseReader(new ByteArrayInputStream(text.getBytes("ISO-8859-1")))));
+
+        text = "<html><head><!-- <meta charset=\"koi8-r\"> --><meta charset='windows-1251'></head>"
+                + "<body>\u041f\u0440\u0438\u0432\u0435\u0442</body></html>";
+        assertEquals(text, readAll(new ParseReader(new ByteArrayInputStream(text.getBytes("windows-1251")))));
+
+        text = "<html><body>\u65e5\u672c\u8a9e \ud83d\ude00</body></html>";
+        assertEquals(text, readAll(new ParseReader(new ByteArrayInputStream(text.getBytes("UTF-8")))));
+        byte[] bom = ("\ufeff" + text).getBytes("UTF-16LE");
+        assertEquals(text, readAll(new ParseReader(new ByteArrayInputStream(bom))));
+
+        // Content that the parser fails on only falls back to the default character set.
+        text = "<p>&#x; caf\u00e9</p><meta charset=\"ISO-8859-1\">";
+        assertEquals(text, readAll(new ParseReader(new ByteArrayInputStream(text.getBytes("UTF-8")))));
+    }
+
+    @Test
+    public void positionTracking() throws IOException {
+        ParseReader reader = new ParseReader(new StringReader(TEXT), null, 5);
+        TagParser parser = new TagParser(reader);
+        readAll(reader);
+        assertEquals(7, reader.getLineNumber());
+        assertEquals("1:6", parser.getCharacterPosition(6));
+        assertEquals("2:0", parser.getCharacterPosition(7));
+        assertEquals("4:1", parser.getCharacterPosition(24));
+
+        reader = new ParseReader(TEXT);
+        reader.setPositionTracking(false);
+        parser = new TagParser(reader);
+        readAll(reader);
+        assertEquals(0, reader.getLineNumber());
+        assertEquals("@24", parser.getCharacterPosition(24));
+        assertEquals("Parsed 49 characters.", parser.getCompletionReport());
+    }
+
+    @Test
+    public void checksum() throws IOException {
+        String text = "<p>Hello world, this is a test.</p>";
+        ContentChecksum[] checksums = { new Crc32cChecksum(), new XxHash64Checksum() };
+        long[] expected = { 0x2FE3F2DDL, 0x8537E42D969AB6B8L };
+        for (int i = 0; i < checksums.length; i++) {
+            for (int blockSize = 1; blockSize < 20; blockSize++) {
+                ParseReader reader = new ParseReader(new StringReader(text), null, blockSize);
+                checksums[i].reset();
+                reader.setChecksum(checksums[i]);
+                readAll(reader);
+                assertEquals(expected[i], reader.getChecksum());
+            }
+        }
+
+        ParseReader reader = new ParseReader(text);
+        reader.setChecksum(null);
+        readAll(reader);
+        assertEquals(0, reader.getChecksum());
+    }
+
+    private static void checkMapped(String text, Charset charset) throws IOException {
+        File file = File.createTempFile("parsereader", ".html");
+        file.deleteOnExit();
+        OutputStream output = new FileOutputStream(file);
+        try {
+            output.write(text.getBytes(charset));
+        } finally {
+            output.close();
+        }
+
+        ParseReader expected = new ParseReader(text);
+        ParseReader reader = ParseReader.map(file, charset);
+        char c;
+        do {
+            c = reader.read();
+            assertEquals(expected.read(), c);
+        } while (c != ParseReader.EOF);
+        assertEquals(expected.getLineNumber(), reader.getLineNumber());
+        assertEquals(expected.getChecksum(), reader.getChecksum());
+        assertEquals(file.getPath(), reader.getFilename());
+    }
+
+    private static String readAll(ParseReader reader) throws IOException {
+        StringBuilder result = new StringBuilder();
+        char c;
+        while ((c = reader.read()) != ParseReader.EOF) result.append(c);
+        return result.toString();
+    }
+}
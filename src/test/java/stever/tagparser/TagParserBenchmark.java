@@ -0,0 +1,333 @@
+package stever.tagparser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Simple throughput benchmark for the tag parser. This is not run as part of the test suite.
+ * Run the main method with the test classpath, optionally giving the number of iterations.
+ */
+public class TagParserBenchmark {
+
+    /** Number of untimed iterations to let the JIT compiler settle. */
+    private static final int WARMUP = 20;
+
+    /** Number of attribute values found by tags(), kept so that the lookups aren't optimised away. */
+    static int found = 0;
+
+    /**
+     * Builds a token-heavy document with plenty of short words, numbers, punctuation and entities.
+     * @param paragraphs Number of paragraphs to generate.
+     * @return HTML content.
+     */
+    static String tokenHeavyDocument(int paragraphs) {
+        StringBuilder html = new StringBuilder();
+        html.append("<html><head><title>Benchmark</title></head><body>\n");
+        for (int i = 0; i < paragraphs; i++) {
+            html.append("<div class=\"c").append(i % 7).append("\" id=\"d").append(i).append("\">");
+            html.append("<p>Item ").append(i).append(", a b c; x=").append(i * 31).append(" (y) &amp; z &nbsp;-");
+            html.append(" it's 1,234.56 &copy; &#169; &#xA9; -- the end.</p>\n");
+            html.append("<a href=\"/p?id=").append(i).append("&amp;x=y\">link ").append(i).append("</a><br></div>\n");
+        }
+        html.append("</body></html>\n");
+        return html.toString();
+    }
+
+    /**
+     * Builds a text-heavy document of long paragraphs, with a little non-ASCII text and few tags.
+     * @param paragraphs Number of paragraphs to generate.
+     * @return HTML content.
+     */
+    static String textHeavyDocument(int paragraphs) {
+        StringBuilder html = new StringBuilder();
+        html.append("<html><head><title>Benchmark</title></head><body>\n");
+        for (int i = 0; i < paragraphs; i++) {
+            html.append("<p>");
+            for (int j = 0; j < 8; j++) {
+                html.append("The quick brown fox jumps over the lazy dog, ").append(i * 8 + j)
+                        .append(" times in a row; caf\u00e9 prices rose 3.5% this year.\n");
+            }
+            html.append("<!-- paragraph ").append(i).append(" --></p>\n");
+        }
+        html.append("</body></html>\n");
+        return html.toString();
+    }
+
+    /**
+     * Builds a document of elements with long attribute values, like inline styles and data URIs.
+     * @param elements Number of elements to generate.
+     * @return HTML content.
+     */
+    static String attributeHeavyDocument(int elements) {
+        StringBuilder html = new StringBuilder();
+        for (int i = 0; i < elements; i++) {
+            html.append("<img style=\"border: 1px solid #ccc; margin: 0 auto; padding: ").append(i % 9)
+                    .append("px; background-color: rgba(0, 0, 0, 0.5)\" src=\"data:image/png;base64,");
+            for (int j = 0; j < 8; j++) html.append("iVBORw0KGgoAAAANSUhEUgAAAAEAAAAB");
+            html.append("\" alt='Image ").append(i).append("'>\n");
+        }
+        return html.toString();
+    }
+
+    /**
+     * Reads the whole document, finding each quote character either by checking one character
+     * at a time, or by reading runs of the other characters from the block buffer.
+     * @param html HTML content.
+     * @param runs Whether to read runs of characters.
+     * @return Number of quote characters found.
+     * @throws IOException Occurs if failed to read from input.
+     */
+    static int scan(String html, boolean runs) throws IOException {
+        ParseReader reader = new ParseReader(html);
+        boolean[] set = TagParser.QUOTED_CHARS;
+        int quotes = 0;
+        char c;
+        while (true) {
+            if (runs) reader.readRun(set);
+            if ((c = reader.read()) == ParseReader.EOF) break;
+            if (c == '"') quotes++;
+        }
+        return quotes;
+    }
+
+    /**
+     * Finds the end of a run of characters in a set one character at a time, as ParseReader.runEnd()
+     * did before it checked blocks of eight characters. Kept to measure the difference.
+     * @param buffer Characters to check.
+     * @param start Index of the first character to check.
+     * @param end Index after the last character to check.
+     * @param set Flags for the characters below 256 in the set, then one flag for all the characters from 256 up.
+     * @return Index of the first character not in the set, or end.
+     */
+    static int scalarRunEnd(char[] buffer, int start, int end, boolean[] set) {
+        int i = start;
+        while (i < end) {
+            char c = buffer[i];
+            if (c < 256 ? !set[c] : !set[256] || c == ParseReader.EOF) break;
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Finds each quote character by skipping runs of the other characters, either one character
+     * at a time or with the eight-at-a-time check used by ParseReader.
+     * @param chars HTML content.
+     * @param blocks Whether to check eight characters at a time.
+     * @return Number of quote characters found.
+     */
+    static int scanRuns(char[] chars, boolean blocks) {
+        boolean[] set = TagParser.QUOTED_CHARS;
+        int quotes = 0;
+        int i = 0;
+        while (true) {
+            i = blocks ? ParseReader.runEnd(chars, i, chars.length, set) : scalarRunEnd(chars, i, chars.length, set);
+            if (i == chars.length) break;
+            if (chars[i++] == '"') quotes++;
+        }
+        return quotes;
+    }
+
+    /**
+     * Tokenizes the whole document.
+     * @param html HTML content.
+     * @param slice Whether token text should be sliced from the input buffer.
+     * @param table Whether to use the table-driven parser.
+     * @return Number of tokens parsed.
+     * @throws IOException Occurs if failed to read from input.
+     * @throws MaxErrorsException Maximum number of errors reached.
+     */
+    static int tokenize(String html, boolean slice, boolean table) throws IOException, MaxErrorsException {
+        ParseReader reader = new ParseReader(html);
+        TagParser parser = table ? new TableTagParser(reader) : new TagParser(reader);
+        parser.setSliceTokens(slice);
+        int count = 0;
+        while (!(parser.getNextToken() instanceof EOFToken)) count++;
+        return count;
+    }
+
+    /**
+     * Tokenizes the whole document, looking up the attributes of each tag.
+     * @param html HTML content.
+     * @return Number of tags parsed.
+     * @throws IOException Occurs if failed to read from input.
+     * @throws MaxErrorsException Maximum number of errors reached.
+     */
+    static int tags(String html) throws IOException, MaxErrorsException {
+        TagParser parser = new TagParser(new ParseReader(html));
+        parser.setSliceTokens(true);
+        int count = 0;
+        ParseToken token;
+        while (!((token = parser.getNextToken()) instanceof EOFToken)) {
+            if (!(token instanceof TagToken)) continue;
+            Tag tag = ((TagToken) token).getTag();
+            if (tag.getAttributeValue("class") != null) found++;
+            if (tag.getAttributeValue("href") != null) found++;
+            found += tag.getAttributes().size();
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Collects the tags of a document, for rendering.
+     * @param html HTML content.
+     * @return Tags found.
+     * @throws IOException Occurs if failed to read from input.
+     * @throws MaxErrorsException Maximum number of errors reached.
+     */
+    static List<Tag> collectTags(String html) throws IOException, MaxErrorsException {
+        TagParser parser = new TagParser(new ParseReader(html));
+        parser.setSliceTokens(true);
+        List<Tag> result = new ArrayList<Tag>();
+        ParseToken token;
+        while (!((token = parser.getNextToken()) instanceof EOFToken)) {
+            if (token instanceof TagToken) result.add(((TagToken) token).getTag());
+        }
+        return result;
+    }
+
+    /**
+     * Measures the bytes allocated by the current thread, where the JVM supports it.
+     * @return Bytes allocated so far, or -1 if not supported.
+     */
+    static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) return -1;
+        return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Creates a reader for UTF-8 content, either held in memory so that text can be copied as its
+     * original bytes, or read the same way as a stream, so that it can't.
+     * @param utf8 UTF-8 encoded content.
+     * @param passthrough Whether the text can be copied as its original bytes.
+     * @return Reader for the content.
+     */
+    static ParseReader utf8Reader(byte[] utf8, boolean passthrough) {
+        if (passthrough) return new ParseReader(utf8);
+        return new ParseReader(new Utf8Reader(utf8, 0, utf8.length, null), null, ParseReader.DEFAULT_BLOCK_SIZE);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        String html = tokenHeavyDocument(2000);
+
+        for (boolean table : new boolean[] { false, true }) {
+            for (boolean slice : new boolean[] { false, true }) {
+                int tokens = 0;
+                for (int i = 0; i < WARMUP; i++) tokens = tokenize(html, slice, table);
+
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) tokenize(html, slice, table);
+                long elapsed = System.nanoTime() - start;
+
+                double millis = elapsed / 1e6 / iterations;
+                System.out.printf("tokenize%s%s: %d chars, %d tokens, %.2f ms/doc, %.1f MB/s%n",
+                        table ? " (table)" : "", slice ? " (slices)" : "",
+                        html.length(), tokens, millis, html.length() / millis / 1000.0);
+            }
+        }
+
+        // Finding the delimiters in documents of a range of sizes.
+        for (int elements : new int[] { 10, 100, 1000 }) {
+            String attributes = attributeHeavyDocument(elements);
+            int repeat = 10000 / elements;
+            for (boolean runs : new boolean[] { false, true }) {
+                for (int i = 0; i < WARMUP * repeat; i++) scan(attributes, runs);
+
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations * repeat; i++) scan(attributes, runs);
+                long elapsed = System.nanoTime() - start;
+
+                double micros = elapsed / 1e3 / (iterations * repeat);
+                System.out.printf("scan%s: %d chars, %.2f us/doc, %.1f MB/s%n", runs ? " (runs)" : "",
+                        attributes.length(), micros, attributes.length() / micros);
+            }
+
+            // The run loop on its own, checking one character or eight characters at a time.
+            char[] chars = attributes.toCharArray();
+            for (boolean blocks : new boolean[] { false, true }) {
+                for (int i = 0; i < WARMUP * repeat; i++) scanRuns(chars, blocks);
+
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations * repeat; i++) scanRuns(chars, blocks);
+                long elapsed = System.nanoTime() - start;
+
+                double micros = elapsed / 1e3 / (iterations * repeat);
+                System.out.printf("scan runs%s: %d chars, %.2f us/doc, %.1f MB/s%n", blocks ? " (blocks)" : " (scalar)",
+                        chars.length, micros, chars.length / micros);
+            }
+        }
+
+        // Building tags and looking up their attributes.
+        int tags = 0;
+        for (int i = 0; i < WARMUP; i++) tags = tags(html);
+
+        long allocated = allocatedBytes();
+        long tagStart = System.nanoTime();
+        for (int i = 0; i < iterations; i++) tags(html);
+        long tagElapsed = System.nanoTime() - tagStart;
+        allocated = allocatedBytes() - allocated;
+
+        System.out.printf("tags: %d tags, %.1f ns/tag, %d bytes/tag%n", tags,
+                (double) tagElapsed / iterations / tags, allocated / iterations / tags);
+
+        // Writing tags with attribute values to be escaped.
+        StringBuilder values = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            values.append("<a href=\"/p?id=").append(i).append("&amp;x=y&amp;z\" title='\"").append(i)
+                    .append("\" &lt; &quot;more&quot;' class=\"c").append(i % 7).append("\">\n");
+        }
+        List<Tag> escaped = collectTags(values.toString());
+        int length = 0;
+        for (int i = 0; i < WARMUP; i++) for (Tag tag : escaped) length += tag.toString().length();
+
+        allocated = allocatedBytes();
+        long renderStart = System.nanoTime();
+        for (int i = 0; i < iterations; i++) for (Tag tag : escaped) length += tag.toString().length();
+        long renderElapsed = System.nanoTime() - renderStart;
+        allocated = allocatedBytes() - allocated;
+
+        System.out.printf("render: %d tags, %.1f ns/tag, %d bytes/tag%n", escaped.size(),
+                (double) renderElapsed / iterations / escaped.size(), allocated / iterations / escaped.size());
+
+        // Many small documents, where the per-document setup is significant.
+        String small = tokenHeavyDocument(5);
+        int documents = iterations * 400;
+        for (int i = 0; i < WARMUP * 400; i++) XmlExtractor.toXml(small);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < documents; i++) XmlExtractor.toXml(small);
+        long elapsed = System.nanoTime() - start;
+
+        double micros = elapsed / 1e3 / documents;
+        System.out.printf("toXml: %d chars, %.2f us/doc, %.1f MB/s%n",
+                small.length(), micros, small.length() / micros);
+
+        // UTF-8 to UTF-8, with the text copied as its original bytes or decoded and encoded again.
+        byte[] text = textHeavyDocument(2000).getBytes("UTF-8");
+        ByteArrayOutputStream output = new ByteArrayOutputStream(text.length * 2);
+        for (boolean passthrough : new boolean[] { false, true }) {
+            for (int i = 0; i < WARMUP; i++) {
+                output.reset();
+                XmlExtractor.toXml(utf8Reader(text, passthrough), output);
+            }
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                output.reset();
+                XmlExtractor.toXml(utf8Reader(text, passthrough), output);
+            }
+            elapsed = System.nanoTime() - start;
+
+            double millis = elapsed / 1e6 / iterations;
+            System.out.printf("toXml utf8%s: %d bytes, %.2f ms/doc, %.1f MB/s%n", passthrough ? " (passthrough)" : "",
+                    text.length, millis, text.length / millis / 1000.0);
+        }
+    }
+}
@@ -5,6 +5,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 
 public class TagParserTest {
 
@@ -20,4 +28,216 @@ public class TagParserTest {
             token = parser.getNextToken();
         }
     }
+
+    @Test
+    public void sliceTokens() throws IOException, MaxErrorsException {
+        String html = "<p class=\"a\" title='x &amp; y'>Hello   world<!-- note --></p>"
+                + "<script>var a = 1;</script>\nend";
+        List<String> expected = tokens(new TagParser(new ParseReader(html)));
+        for (int blockSize = 1; blockSize < 12; blockSize++) {
+            TagParser parser = new TagParser(new ParseReader(new StringReader(html), null, blockSize));
+            parser.setSliceTokens(true);
+            assertEquals(expected, tokens(parser));
+        }
+    }
+
+    @Test
+    public void reset() throws IOException, MaxErrorsException {
+        String first = "<p>First &amp; <b>bold</b>\n</p>";
+        String second = "<div id=\"x\">Second\r\ndocument</div>";
+        TagParser parser = new TagParser(new ParseReader(first));
+        assertEquals(tokens(new TagParser(new ParseReader(first))), tokens(parser));
+
+        parser.reset(second);
+        assertEquals(tokens(new TagParser(new ParseReader(second))), tokens(parser));
+        assertEquals("Parsed 2 lines containing 33 characters.", parser.getCompletionReport());
+
+        parser.reset(new StringReader(first));
+        assertEquals(tokens(new TagParser(new ParseReader(first))), tokens(parser));
+    }
+
+    @Test
+    public void feedChunks() throws IOException, MaxErrorsException {
+        String html = "<p class=\"caf\u00e9\" title='x &amp; y'>Na\u00efve   \u20ac1<!-- note -->\r\n"
+                + "&copy; 2012</p><script>var a = '\ud83d\ude00';</script><br/>end";
+        List<String> expected = tokens(new TagParser(new ParseReader(html)));
+        byte[] utf8 = html.getBytes("UTF-8");
+        for (int chunkSize = 1; chunkSize < 12; chunkSize++) {
+            TagParser parser = new TagParser(new ParseReader());
+            parser.setSliceTokens(chunkSize % 2 == 0);
+            List<String> result = new ArrayList<String>();
+            for (int i = 0; i < html.length(); i += chunkSize) {
+                parser.feed(CharBuffer.wrap(html, i, Math.min(i + chunkSize, html.length())));
+                drain(parser, result);
+            }
+            parser.endOfInput();
+            drain(parser, result);
+            assertEquals(expected, result);
+
+            parser.reset();
+            result.clear();
+            for (int i = 0; i < utf8.length; i += chunkSize) {
+                parser.feed(ByteBuffer.wrap(utf8, i, Math.min(chunkSize, utf8.length - i)));
+                drain(parser, result);
+            }
+            parser.endOfInput();
+            drain(parser, result);
+            assertEquals(expected, result);
+        }
+    }
+
+    @Test
+    public void traceRecorder() throws IOException, MaxErrorsException {
+        TagParser parser = new TagParser(new ParseReader("<p>Hi</p>"));
+        parser.setTraceRecorder(new TraceRecorder(3));
+        tokens(parser);
+        assertEquals(3, parser.getTraceRecorder().size());
+        assertEquals("@7 OPENTAG /\n@8 ENDTAG1 p\n@9 ENDTAG2 >\n", parser.getTraceRecorder().toString());
+    }
+
+    @Test
+    public void diagnostics() throws IOException, MaxErrorsException {
+        TagParser parser = new TagParser(new ParseReader("<p a=<>x &amp y &#12 z"));
+        final List<ParseDiagnostic> reported = new ArrayList<ParseDiagnostic>();
+        parser.setDiagnosticListener(new ParseDiagnosticListener() {
+            public void reportDiagnostic(ParseDiagnostic diagnostic) {
+                reported.add(diagnostic);
+            }
+        });
+        parser.setMaxDiagnostics(2);
+        tokens(parser);
+
+        assertEquals(3, reported.size());
+        assertEquals(reported.subList(0, 2), parser.getDiagnostics());
+        assertEquals(ParseDiagnostic.Kind.INVALID_CHAR, reported.get(0).getKind());
+        assertEquals(State.VALUE1, reported.get(0).getState());
+        assertEquals('<', reported.get(0).getCharacter());
+        assertEquals("Recovery assumed that ; should have ended this entity reference (1:14)", reported.get(1).getMessage());
+        assertEquals(ParseDiagnostic.Kind.CHARACTER_ENTITY_NOT_ENDED, reported.get(2).getKind());
+        assertEquals(1, parser.getErrorCount());
+        assertEquals(2, parser.getRecoveryCount());
+        assertEquals(0, parser.getWarningCount());
+    }
+
+    @Test
+    public void tableParser() throws IOException, MaxErrorsException {
+        String html = "<!DOCTYPE html><?xml version=\"1.0\"?><p class=\"a\" id=b checked title='x'>Item 42, 007"
+                + " \t&amp; &nbsp &foo; &#169; &#xA9 & <br/><img src=x /><!-- note --></p>\r\n"
+                + "<script>if (a < b) x = '</scr';</script><![CDATA[raw]]><p =x>a<%b>\u4e2d\u6587";
+        TagParser parser = new TagParser(new ParseReader(html));
+        TagParser table = new TableTagParser(new ParseReader(html));
+        assertEquals(tokens(parser), tokens(table));
+        assertEquals(parser.getDiagnostics().toString(), table.getDiagnostics().toString());
+        assertEquals(parser.getCompletionReport(), table.getCompletionReport());
+    }
+
+    @Test
+    public void textTokens() throws IOException, MaxErrorsException {
+        String html = "<p>Hello, world 007!\r\n\t&amp; more &#65;</p>end";
+        for (TagParser parser : new TagParser[] { new TagParser(new ParseReader(html)),
+                new TableTagParser(new ParseReader(html)) }) {
+            parser.setTextTokens(true);
+            assertEquals("[Tag: <p>, Text: \"Hello, world 007!\n\t\", Entity Reference: amp, Text: \" more \", "
+                    + "Char Entity: A, Tag: </p>, Text: \"end\", EOF]", tokens(parser).toString());
+        }
+    }
+
+    @Test
+    public void sharedTokens() throws IOException, MaxErrorsException {
+        TagParser parser = new TagParser(new ParseReader("a,\nb, 9223372036854775808\n"));
+        assertEquals("Word: 'a'", parser.getNextToken().toString());
+        ParseToken comma = parser.getNextToken();
+        ParseToken newline = parser.getNextToken();
+        assertSame(NewlineToken.INSTANCE, newline);
+        assertEquals("Word: 'b'", parser.getNextToken().toString());
+        assertSame(comma, parser.getNextToken());
+        assertSame(SpacesToken.valueOf(" "), parser.getNextToken());
+        assertEquals("Word: \"9223372036854775808\"", parser.getNextToken().toString());
+        assertSame(newline, parser.getNextToken());
+        assertSame(EOFToken.INSTANCE, parser.getNextToken());
+    }
+
+    @Test
+    public void htmlElements() throws IOException, MaxErrorsException {
+        TagParser parser = new TagParser(new ParseReader("<BR><Body class=x></BODY><custom-Tag>"));
+        Tag br = ((TagToken) parser.getNextToken()).getTag();
+        Tag body = ((TagToken) parser.getNextToken()).getTag();
+        Tag end = ((TagToken) parser.getNextToken()).getTag();
+        assertSame("br", br.getName());
+        assertEquals(true, HtmlElements.isVoid(br.getElement()));
+        assertEquals(HtmlElements.BODY, body.getElement());
+        assertEquals(true, HtmlElements.isSingle(end.getElement()));
+        assertEquals(true, end.isEndTag());
+        assertSame(body.getName(), end.getName());
+        assertEquals("</body>", end.toString());
+        Tag custom = ((TagToken) parser.getNextToken()).getTag();
+        assertEquals("custom-tag", custom.getName());
+        assertEquals(HtmlElements.UNKNOWN, custom.getElement());
+    }
+
+    @Test
+    public void attributeOrder() throws IOException, MaxErrorsException {
+        TagParser parser = new TagParser(new ParseReader("<p Title=x ID=y class=z title=w custom>"));
+        Tag tag = ((TagToken) parser.getNextToken()).getTag();
+        assertEquals("<p title=\"w\" id=\"y\" class=\"z\" custom=\"\">", tag.toString());
+        assertEquals(4, tag.getAttributeCount());
+        assertSame("id", tag.getAttribute(1).getName());
+        assertEquals("z", tag.getAttributeValue("CLASS"));
+        assertEquals("<p title=\"w\" id=\"y\" class=\"z\" custom=\"\"/>", new EmptyElement(tag).toString());
+    }
+
+    @Test
+    public void attributeEscaping() {
+        Tag tag = new Tag("a", false);
+        tag.addAttribute("plain", "x y");
+        tag.addAttribute("title", "\"1\" &amp;quot;2&amp;quot; &lt;3> & 4");
+        assertSame("x y", tag.getAttribute("plain").getText());
+        assertEquals("&quot;1&quot; &quot;2&quot; &lt;3&gt; &amp; 4", tag.getAttributeValue("title"));
+        assertEquals("<a plain=\"x y\" title=\"&amp;quot;1&amp;quot; &amp;quot;2&amp;quot; &amp;lt;3&amp;gt; &amp; 4\">",
+                tag.toString());
+    }
+
+    @Test
+    public void renderTo() throws IOException, MaxErrorsException {
+        String html = "<!DOCTYPE html><p class=\"a &amp; b\">Hi, 42 &amp; &#65;\n<br><!-- c --></p><?pi x?>"
+                + "<script>x < 1</script>";
+        TagParser parser = new TagParser(new ParseReader(html));
+        parser.setSliceTokens(true);
+        StringBuilder rendered = new StringBuilder();
+        ParseToken token;
+        while (!((token = parser.getNextToken()) instanceof EOFToken)) {
+            StringBuilder out = new StringBuilder();
+            token.renderTo(out);
+            assertEquals(token.render(), out.toString());
+            token.renderTo(rendered);
+        }
+        assertEquals(html, rendered.toString());
+    }
+
+    @Test
+    public void unterminatedTag() throws IOException, MaxErrorsException {
+        for (TagParser parser : new TagParser[] { new TagParser(new ParseReader("<p id=a title=\"never closed")),
+                new TableTagParser(new ParseReader("<p id=a title=\"never closed")) }) {
+            assertEquals("[Tag: <p id=\"a\">, EOF]", tokens(parser).toString());
+            assertEquals(ParseDiagnostic.Kind.UNEXPECTED_EOF, parser.getDiagnostics().get(0).getKind());
+        }
+    }
+
+    private static void drain(TagParser parser, List<String> result) throws IOException, MaxErrorsException {
+        ParseToken token;
+        while ((token = parser.pollToken()) != null) {
+            result.add(token.toString());
+            if (token instanceof EOFToken) return;
+        }
+    }
+
+    private static List<String> tokens(TagParser parser) throws IOException, MaxErrorsException {
+        List<String> result = new ArrayList<String>();
+        ParseToken token;
+        do {
+            token = parser.getNextToken();
+            result.add(token.toString());
+        } while (!(token instanceof EOFToken));
+        return result;
+    }
 }
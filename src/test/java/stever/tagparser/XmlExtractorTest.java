@@ -4,7 +4,14 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.channels.Channels;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 
 public class XmlExtractorTest {
 
@@ -16,4 +23,46 @@ public class XmlExtractorTest {
         String xml = XmlExtractor.toXml(html);
         log.info("XML:\n{}", xml);
     }
+
+    @Test
+    public void streaming() throws IOException {
+        String html = "<html><head><title>T &amp; x</title></head><body><p class=a>One<br>two</div>"
+                + "<script>var a = 1;</script><!-- c -->&nbsp;end</body></html>";
+        for (int blockSize = 1; blockSize < 12; blockSize++) {
+            StringWriter writer = new StringWriter();
+            XmlExtractor.toXml(new ParseReader(new StringReader(html), null, blockSize), writer);
+            assertEquals(XmlExtractor.toXml(html), writer.toString());
+        }
+    }
+
+    @Test
+    public void utf8Output() throws IOException {
+        StringBuilder html = new StringBuilder("<html><body>");
+        for (int i = 0; i < 3000; i++) {
+            html.append("<p title=\"caf\u00e9 ").append(i).append("\">Na\u00efve \u20ac1 \ud83d\ude00</p>");
+        }
+        html.append("<script>x = '\u4e2d';</script></body></html>");
+        byte[] expected = XmlExtractor.toXml(html.toString()).getBytes("UTF-8");
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        XmlExtractor.toXml(new ParseReader(html.toString()), output);
+        assertArrayEquals(expected, output.toByteArray());
+
+        output.reset();
+        XmlExtractor.toXml(new ParseReader(html.toString()), Channels.newChannel(output));
+        assertArrayEquals(expected, output.toByteArray());
+    }
+
+    @Test
+    public void utf8Passthrough() throws IOException {
+        String html = "<html><body><p>Caf\u00e9 \ud83d\ude00 line\r\nnext\r\n\r\n&amp; more</p><!-- \u4e2d\r\n -->"
+                + "<p>after bad \u0000 byte</p></body></html>";
+        byte[] utf8 = html.getBytes("UTF-8");
+        utf8[html.substring(0, html.indexOf('\u0000')).getBytes("UTF-8").length] = (byte) 0xFF;
+        String expected = XmlExtractor.toXml(new ParseReader(new String(utf8, "UTF-8")));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        XmlExtractor.toXml(new ParseReader(utf8), output);
+        assertEquals(expected, output.toString("UTF-8"));
+    }
 }